@@ -0,0 +1,39 @@
+package mongo.db;
+
+import java.util.*;
+import java.util.stream.*;
+
+
+/**
+ * Reproducible csv logs of benchmarks: urls and ips are drawn from fixed pools,
+ * dates are spread over 2017
+ */
+final class BenchmarkLogs {
+    static final int URLS = 1000;
+    static final int IPS = 10_000;
+    private static final long SEED = 42;
+
+    private BenchmarkLogs() {
+    }
+
+    static String url(int number) {
+        return "http://www.example.com/page/" + number;
+    }
+    static String ip(int number) {
+        return "10." + (number >> 16 & 0xFF) + "." + (number >> 8 & 0xFF) + "." + (number & 0xFF);
+    }
+    static String log(Random random) {
+        return ip(random.nextInt(IPS)) + ", "
+                + "2017-" + (1 + random.nextInt(12)) + "-" + (1 + random.nextInt(28))
+                + "T" + random.nextInt(24) + ":" + random.nextInt(60) + ":" + random.nextInt(60) + ", "
+                + random.nextInt(100) + "." + random.nextInt(10) + ", "
+                + url(random.nextInt(URLS));
+    }
+    static Stream<String> logs(long count) {
+        Random random = new Random(SEED);
+        return Stream.generate(() -> log(random)).limit(count);
+    }
+    static String[] logsArray(int count) {
+        return logs(count).toArray(String[]::new);
+    }
+}
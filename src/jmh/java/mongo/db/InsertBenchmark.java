@@ -0,0 +1,62 @@
+package mongo.db;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Logs inserted one by one against logs inserted by batches,
+ * both scores are logs per second.
+ * insertLog prints a line per log, stdout is silenced so console output isn't measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InsertBenchmark {
+    private static final int BATCH = 1000;
+
+    private MongoLogHandler handler;
+    private String[] logs;
+    private List<String> batch;
+    private int next;
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() {
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        handler = new MongoLogHandler("localhost", 27017, "serverlogs_jmh_insert");
+        handler.getCollection().drop();
+        handler.ensureIndexes();
+        handler.setBatchSize(BATCH);
+        logs = BenchmarkLogs.logsArray(BATCH);
+        batch = Arrays.asList(logs);
+    }
+    @TearDown
+    public void tearDown() {
+        handler.getDatabase().drop();
+        handler.close();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void insertLog() {
+        handler.insertLog(logs[next++ % BATCH]);
+    }
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public IngestResult insertLogs() {
+        return handler.insertLogs(batch);
+    }
+}
@@ -0,0 +1,96 @@
+package mongo.db;
+
+import org.bson.*;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Validation and conversion of csv logs, the per log cost of every insert
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParsingBenchmark {
+    private static final int LOGS = 1024;
+
+    private MongoLogHandler handler;
+    private LogParser parser;
+    private LogRecord record;
+    private LogRecordCodec codec;
+    private BasicOutputBuffer buffer;
+    private String[] logs;
+    private String[] dateTimes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        handler = new MongoLogHandler("localhost", 27017, "serverlogs_jmh");
+        parser = new LogParser();
+        record = new LogRecord();
+        codec = new LogRecordCodec();
+        buffer = new BasicOutputBuffer();
+        logs = BenchmarkLogs.logsArray(LOGS);
+        dateTimes = new String[LOGS];
+        for (int i = 0; i < LOGS; i++)
+            dateTimes[i] = logs[i].split(", ")[1];
+    }
+    @TearDown
+    public void tearDown() {
+        handler.close();
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return handler.isValid(logs[next++ & LOGS - 1]);
+    }
+    /**
+     * isValid of one handler shared by threads on all cores,
+     * its score divided by the score of {@link #isValid()} is the speedup of validation
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean isValidShared(SharedHandler shared) {
+        return shared.handler.isValid(logs[next++ & LOGS - 1]);
+    }
+    @Benchmark
+    public Date getDateTime() {
+        return handler.getDateTime(dateTimes[next++ & LOGS - 1]);
+    }
+    /**
+     * Csv line to a document, as inserted before {@link LogRecordCodec}
+     */
+    @Benchmark
+    public Document toDocument() {
+        return parser.parse(logs[next++ & LOGS - 1], record).toDocument();
+    }
+    /**
+     * Csv line to BSON of the inserted document
+     */
+    @Benchmark
+    public int encode() {
+        buffer.truncateToPosition(0);
+        codec.encode(new BsonBinaryWriter(buffer), parser.parse(logs[next++ & LOGS - 1], record),
+                EncoderContext.builder().build());
+        return buffer.getPosition();
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedHandler {
+        private MongoLogHandler handler;
+
+        @Setup
+        public void setUp() {
+            handler = new MongoLogHandler("localhost", 27017, "serverlogs_jmh");
+        }
+        @TearDown
+        public void tearDown() {
+            handler.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package mongo.db;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Find and report queries over 'logs' of the given size.
+ * Each size is kept in its own database and filled once,
+ * later runs reuse it while the count of documents matches
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueryBenchmark {
+    private static final int REPORT_LIMIT = 10;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public long documents;
+
+    private MongoLogHandler handler;
+    private long start;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        handler = new MongoLogHandler("localhost", 27017, "serverlogs_jmh_" + documents);
+        if (handler.getCollection().count() != documents) {
+            handler.getCollection().drop();
+            handler.ensureIndexes();
+            handler.insertLogs(BenchmarkLogs.logs(documents));
+        }
+        start = LocalDateTime.of(2017, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    @TearDown
+    public void tearDown() {
+        handler.close();
+    }
+
+    @Benchmark
+    public List<Document> findIpsByUrl() {
+        return handler.findIpsByUrl(BenchmarkLogs.url(next++ % BenchmarkLogs.URLS)).into(new ArrayList<>());
+    }
+    @Benchmark
+    public List<Document> findUrlsOfIp() {
+        return handler.findUrlsOfIp(BenchmarkLogs.ip(next++ % BenchmarkLogs.IPS)).into(new ArrayList<>());
+    }
+    /**
+     * One hour window of 2017
+     */
+    @Benchmark
+    public List<Document> findUrlsInTime() {
+        Date from = new Date(start + (next++ % (365 * 24)) * HOUR);
+        return handler.findUrlsInTime(from, new Date(from.getTime() + HOUR)).into(new ArrayList<>());
+    }
+    @Benchmark
+    public List<Document> findUrlsCount() {
+        return handler.findUrlsCount(REPORT_LIMIT).into(new ArrayList<>());
+    }
+    @Benchmark
+    public List<Document> findUrlsDuration() {
+        return handler.findUrlsDuration(REPORT_LIMIT).into(new ArrayList<>());
+    }
+    @Benchmark
+    public List<Document> findIdsDurationCount() {
+        return handler.findIdsDurationCount(REPORT_LIMIT).into(new ArrayList<>());
+    }
+    /**
+     * One day window of 2017
+     */
+    @Benchmark
+    public List<Document> findUrlsCountByTime() {
+        Date from = new Date(start + (next++ % 365) * 24 * HOUR);
+        return handler.findUrlsCountByTime(from, new Date(from.getTime() + 24 * HOUR), REPORT_LIMIT)
+                .into(new ArrayList<>());
+    }
+}
@@ -0,0 +1,292 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.*;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.security.InvalidParameterException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+
+/**
+ * Non blocking variant of {@link MongoLogHandler} for 'logs' collection,
+ * built on the asynchronous driver.
+ * Methods return futures completed by driver callbacks.
+ * The count of operations in flight is limited, operations over the limit are queued
+ * and sent when earlier operations complete, so methods may be called from callbacks.
+ * The queue is bounded too, operations over its limit fail at once with RejectedExecutionException.
+ * Logs are inserted as plain documents: the storage layouts, rollups, deduplication,
+ * sketches, spool and query cache of a {@link MongoLogHandler} on the same collection
+ * aren't supported, its rollups and cached reports don't include logs inserted here
+ */
+public class AsyncMongoLogHandler {
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_MAX_QUEUED = 10_000;
+
+    private final MongoClient client;
+    private final MongoCollection<Document> collection;
+    private final LogParser parser = new LogParser();
+    private final Semaphore inFlight;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile boolean allowDiskUse;
+
+    public AsyncMongoLogHandler() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+    /**
+     * @param maxInFlight max count of operations sent and not completed yet
+     */
+    public AsyncMongoLogHandler(int maxInFlight) {
+        this("localhost", 27017, "serverlogs", maxInFlight);
+    }
+    /**
+     * Handler of 'logs' collection in another database
+     */
+    public AsyncMongoLogHandler(String host, int port, String databaseName) {
+        this(host, port, databaseName, DEFAULT_MAX_IN_FLIGHT);
+    }
+    public AsyncMongoLogHandler(String host, int port, String databaseName, int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("max count of operations in flight must be positive");
+        client = MongoClients.create(new ConnectionString("mongodb://" + host + ":" + port));
+        collection = client.getDatabase(databaseName).getCollection("logs");
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return collection;
+    }
+    public int getBatchSize() {
+        return batchSize;
+    }
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.batchSize = batchSize;
+    }
+    public boolean isAllowDiskUse() {
+        return allowDiskUse;
+    }
+    /**
+     * @param allowDiskUse lets report stages write temporary files
+     *                     when they exceed the memory limit of the server
+     */
+    public void setAllowDiskUse(boolean allowDiskUse) {
+        this.allowDiskUse = allowDiskUse;
+    }
+    /**
+     * @return count of operations which may be sent without queueing
+     */
+    public int getAvailableSlots() {
+        return inFlight.availablePermits();
+    }
+    /**
+     * @return count of operations waiting for a free slot, they keep their documents in memory
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+    /**
+     * @param maxQueued max count of operations waiting for a free slot,
+     *                  futures of operations over it fail with RejectedExecutionException
+     */
+    public void setMaxQueued(int maxQueued) {
+        if (maxQueued < 0)
+            throw new IllegalArgumentException("max count of queued operations must not be negative");
+        this.maxQueued = maxQueued;
+    }
+
+    public void close() {
+        client.close();
+    }
+
+    /**
+     * @return future completed when the log is inserted,
+     * it completes exceptionally with InvalidParameterException if csvLog is incorrect
+     */
+    public CompletableFuture<Void> insertLog(String csvLog) {
+        Document document;
+        try {
+            document = parser.parse(csvLog, new LogRecord()).toDocument();
+        }
+        catch (InvalidParameterException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        return execute(callback -> collection.insertOne(document, callback));
+    }
+
+    /**
+     * Sends valid logs by unordered batches of batchSize documents,
+     * batches are written concurrently up to the limit of operations in flight
+     * @param csvLogs strings in comma separated format
+     * @return future of count of inserted documents, numbers and reasons of rejected lines,
+     * lines of batches over the queue limit are rejected too
+     */
+    public CompletableFuture<IngestResult> insertLogs(Iterable<String> csvLogs) {
+        IngestResult parseResult = new IngestResult();
+        List<CompletableFuture<IngestResult>> batchResults = new ArrayList<>();
+        int batchSize = this.batchSize;
+        LogRecord record = new LogRecord();
+        List<Document> batch = new ArrayList<>(batchSize);
+        long[] lineNumbers = new long[batchSize];
+        long lineNumber = 0;
+        for (String csvLog : csvLogs) {
+            lineNumber++;
+            try {
+                parser.parse(csvLog, record);
+            }
+            catch (InvalidParameterException e) {
+                parseResult.reject(lineNumber, e.getMessage());
+                continue;
+            }
+            lineNumbers[batch.size()] = lineNumber;
+            batch.add(record.toDocument());
+            if (batch.size() == batchSize) {
+                batchResults.add(insertBatch(batch, lineNumbers));
+                batch = new ArrayList<>(batchSize);
+                lineNumbers = new long[batchSize];
+            }
+        }
+        if (!batch.isEmpty())
+            batchResults.add(insertBatch(batch, lineNumbers));
+
+        return CompletableFuture.allOf(batchResults.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            IngestResult result = new IngestResult();
+            result.merge(parseResult, 0);
+            for (CompletableFuture<IngestResult> batchResult : batchResults)
+                result.merge(batchResult.join(), 0);
+            return result;
+        });
+    }
+    private CompletableFuture<IngestResult> insertBatch(List<Document> batch, long[] lineNumbers) {
+        CompletableFuture<IngestResult> future = new CompletableFuture<>();
+        this.<Void>execute(callback -> collection.insertMany(batch, new InsertManyOptions().ordered(false), callback))
+                .whenComplete((done, t) -> {
+                    IngestResult result = new IngestResult();
+                    Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+                    if (cause == null)
+                        result.addInserted(batch.size());
+                    else if (cause instanceof MongoBulkWriteException) {
+                        MongoBulkWriteException e = (MongoBulkWriteException) cause;
+                        result.addInserted(e.getWriteResult().getInsertedCount());
+                        for (BulkWriteError error : e.getWriteErrors())
+                            result.reject(lineNumbers[error.getIndex()], error.getMessage());
+                    }
+                    else
+                        for (int i = 0; i < batch.size(); i++)
+                            result.reject(lineNumbers[i], cause.getMessage());
+                    future.complete(result);
+                });
+        return future;
+    }
+
+    //region Find
+    public CompletableFuture<List<Document>> findIpsByUrl(String url) {
+        return into(collection.find(eq("url", url))
+                .sort(MongoLogHandler.IPS_BY_URL_SORT).projection(MongoLogHandler.IPS_BY_URL_PROJECTION));
+    }
+    public CompletableFuture<List<Document>> findUrlsOfIp(String ip) {
+        return into(collection.find(eq("ip", ip))
+                .sort(MongoLogHandler.URLS_OF_IP_SORT).projection(MongoLogHandler.URLS_OF_IP_PROJECTION));
+    }
+    public CompletableFuture<List<Document>> findUrlsInTime(Date dateTime1, Date dateTime2) {
+        return into(collection.find(MongoLogHandler.timeFilter(dateTime1, dateTime2))
+                .sort(MongoLogHandler.URLS_IN_TIME_SORT).projection(MongoLogHandler.URLS_IN_TIME_PROJECTION));
+    }
+    //endregion
+
+    //region Reports
+    /**
+     * Reports have the same form as reports of {@link MongoLogHandler}, limit 0 means no limit
+     */
+    public CompletableFuture<List<Document>> findUrlsCount(int limit) {
+        return aggregate(LogReports.urlsCount(limit));
+    }
+    public CompletableFuture<List<Document>> findUrlsDuration(int limit) {
+        return aggregate(LogReports.urlsDuration(limit));
+    }
+    public CompletableFuture<List<Document>> findIdsDurationCount(int limit) {
+        return aggregate(LogReports.ipsDurationCount(limit));
+    }
+    public CompletableFuture<List<Document>> findUrlsCountByTime(Date dateTime1, Date dateTime2, int limit) {
+        return aggregate(LogReports.urlsCountByTime(dateTime1, dateTime2, limit));
+    }
+    private CompletableFuture<List<Document>> aggregate(List<Bson> pipeline) {
+        return into(collection.aggregate(pipeline).allowDiskUse(allowDiskUse));
+    }
+    //endregion
+
+    private CompletableFuture<List<Document>> into(MongoIterable<Document> iterable) {
+        return execute(callback -> iterable.into(new ArrayList<>(), callback));
+    }
+
+    /**
+     * Starts the operation if there is a free slot or queues it until an operation completes,
+     * the calling thread isn't blocked. If the queue is full the future fails at once,
+     * so callers get a signal to slow down
+     * @param operation passes the callback to a driver method
+     */
+    private <T> CompletableFuture<T> execute(Consumer<SingleResultCallback<T>> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (queued.incrementAndGet() > maxQueued && inFlight.availablePermits() == 0) {
+            queued.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "more than " + maxQueued + " operations are waiting for a free slot"));
+            return future;
+        }
+        waiting.add(() -> start(operation, future));
+        startWaiting();
+        return future;
+    }
+    /**
+     * A thread which adds an operation and a thread which frees a slot both check the queue
+     * after their change, so an operation isn't left in the queue while a slot is free
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            Runnable operation = waiting.poll();
+            if (operation == null)
+                inFlight.release();
+            else {
+                queued.decrementAndGet();
+                operation.run();
+            }
+        }
+    }
+    private <T> void start(Consumer<SingleResultCallback<T>> operation, CompletableFuture<T> future) {
+        try {
+            operation.accept((result, t) -> {
+                release();
+                if (t != null)
+                    future.completeExceptionally(t);
+                else
+                    future.complete(result);
+            });
+        }
+        catch (RuntimeException e) {
+            release();
+            future.completeExceptionally(e);
+        }
+    }
+    private void release() {
+        inFlight.release();
+        startWaiting();
+    }
+}
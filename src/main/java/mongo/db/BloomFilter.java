@@ -0,0 +1,49 @@
+package mongo.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Set of 128 bit hashes which may answer that an absent hash is present with the chosen probability,
+ * but never answers that a present hash is absent.
+ * Bit indexes are combinations of the two halves of the hash, bits are set without locks
+ */
+class BloomFilter {
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedCount count of hashes which keeps false positives at falsePositiveRate
+     */
+    BloomFilter(long expectedCount, double falsePositiveRate) {
+        if (expectedCount < 1)
+            throw new IllegalArgumentException("expected count must be positive");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        long bits = (long) Math.ceil(-expectedCount * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long wordCount = Math.min((bits + 63) / 64, Integer.MAX_VALUE);
+        words = new AtomicLongArray((int) wordCount);
+        bitCount = wordCount * 64;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedCount * Math.log(2)));
+    }
+
+    void put(long hash1, long hash2) {
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long value = words.get(word);
+            while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask))
+                value = words.get(word);
+        }
+    }
+    boolean mightContain(long hash1, long hash2) {
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+            if ((words.get((int) (bit >>> 6)) & 1L << bit) == 0)
+                return false;
+        }
+        return true;
+    }
+}
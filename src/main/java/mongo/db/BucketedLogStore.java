@@ -0,0 +1,139 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Sorts.*;
+import static com.mongodb.client.model.Updates.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Stores logs of one url and one hour in bucket documents of 'logs_buckets' collection:
+ * {url, hour, count, first, last, entries: [{i: ip, t: datetime, d: duration}, ...]}.
+ * A bucket holds up to {@link #MAX_BUCKET_SIZE} entries, further logs start a new bucket.
+ * Url and hour are stored and indexed once per bucket instead of once per log
+ */
+class BucketedLogStore implements LogStore {
+    static final String COLLECTION = "logs_buckets";
+    static final int MAX_BUCKET_SIZE = 1000;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final MongoCollection<Document> buckets;
+
+    BucketedLogStore(MongoDatabase database) {
+        buckets = database.getCollection(COLLECTION);
+        buckets.createIndexes(Arrays.asList(
+                new IndexModel(Indexes.ascending("url", "hour")),
+                new IndexModel(Indexes.ascending("hour")),
+                new IndexModel(Indexes.ascending("entries.i"))));
+    }
+
+    @Override
+    public Map<Integer, String> insert(List<LogRecord> records) {
+        Map<Document, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            LogRecord record = records.get(i);
+            Document key = new Document("url", record.getUrl())
+                    .append("hour", hour(record.getDatetime()));
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        List<List<Integer>> updateIndexes = new ArrayList<>();
+        for (Map.Entry<Document, List<Integer>> group : groups.entrySet()) {
+            List<Integer> indexes = group.getValue();
+            for (int from = 0; from < indexes.size(); from += MAX_BUCKET_SIZE) {
+                List<Integer> part = indexes.subList(from, Math.min(from + MAX_BUCKET_SIZE, indexes.size()));
+                updates.add(bucketUpdate(group.getKey(), records, part));
+                updateIndexes.add(part);
+            }
+        }
+
+        Map<Integer, String> failures = new HashMap<>();
+        try {
+            buckets.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        }
+        catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors())
+                for (int index : updateIndexes.get(error.getIndex()))
+                    failures.put(index, error.getMessage());
+        }
+        return failures;
+    }
+    private static UpdateOneModel<Document> bucketUpdate(Document key, List<LogRecord> records, List<Integer> indexes) {
+        List<Document> entries = new ArrayList<>(indexes.size());
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (int index : indexes) {
+            LogRecord record = records.get(index);
+            entries.add(new Document("i", record.getIp())
+                    .append("t", record.getDate())
+                    .append("d", record.getDuration()));
+            first = Math.min(first, record.getDatetime());
+            last = Math.max(last, record.getDatetime());
+        }
+        Bson filter = and(eq("url", key.getString("url")), eq("hour", key.getDate("hour")),
+                lte("count", MAX_BUCKET_SIZE - entries.size()));
+        Bson update = combine(pushEach("entries", entries), inc("count", entries.size()),
+                min("first", new Date(first)), max("last", new Date(last)));
+        return new UpdateOneModel<>(filter, update, new UpdateOptions().upsert(true));
+    }
+    private static Date hour(Date dateTime) {
+        return hour(dateTime.getTime());
+    }
+    private static Date hour(long dateTime) {
+        return new Date(dateTime - Math.floorMod(dateTime, HOUR));
+    }
+
+    @Override
+    public MongoIterable<Document> findIpsByUrl(String url) {
+        return buckets.aggregate(Arrays.asList(
+                match(eq("url", url)),
+                unwind("$entries"),
+                project(fields(computed("ip", "$entries.i"), excludeId())),
+                sort(descending("ip")))).allowDiskUse(true);
+    }
+    @Override
+    public MongoIterable<Document> findUrlsOfIp(String ip) {
+        return buckets.aggregate(Arrays.asList(
+                match(eq("entries.i", ip)),
+                unwind("$entries"),
+                match(eq("entries.i", ip)),
+                project(fields(include("url"), excludeId())),
+                sort(descending("url")))).allowDiskUse(true);
+    }
+    @Override
+    public MongoIterable<Document> findUrlsInTime(Date dateTime1, Date dateTime2) {
+        return buckets.aggregate(Arrays.asList(
+                match(hourFilter(dateTime1, dateTime2)),
+                unwind("$entries"),
+                match(and(gt("entries.t", dateTime1), lt("entries.t", dateTime2))),
+                project(fields(include("url"), excludeId())),
+                sort(descending("url")))).allowDiskUse(true);
+    }
+    /**
+     * Buckets which may contain logs in [dateTime1, dateTime2)
+     */
+    private static Bson hourFilter(Date dateTime1, Date dateTime2) {
+        return and(gte("hour", hour(dateTime1)), lt("hour", dateTime2));
+    }
+
+    @Override
+    public AggregateIterable<Document> report(List<Bson> pipeline, Date dateTime1, Date dateTime2) {
+        List<Bson> stages = new ArrayList<>();
+        if (dateTime1 != null && dateTime2 != null)
+            stages.add(match(hourFilter(dateTime1, dateTime2)));
+        stages.add(unwind("$entries"));
+        stages.add(project(fields(include("url"), computed("ip", "$entries.i"),
+                computed("datetime", "$entries.t"), computed("duration", "$entries.d"), excludeId())));
+        stages.addAll(pipeline);
+        return buckets.aggregate(stages);
+    }
+}
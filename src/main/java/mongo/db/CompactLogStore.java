@@ -0,0 +1,184 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Accumulators.*;
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Sorts.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.util.*;
+
+
+/**
+ * Stores logs in 'logs_compact' collection as {u: url id, i: ip, t: datetime, d: duration}:
+ * url is an id of {@link UrlDictionary}, IPv4 address is packed into int32,
+ * duration is rounded to integer milliseconds.
+ * Queries decode fields on the server, so results and their order are the same as over 'logs'.
+ * Ips with leading zeros in octets are stored and returned without them
+ */
+class CompactLogStore implements LogStore {
+    static final String COLLECTION = "logs_compact";
+    private static final Bson DECODED_FIELDS = project(fields(computed("url", "$u"), computed("ip", "$i"),
+            computed("datetime", "$t"), computed("duration", new Document("$divide", Arrays.asList("$d", 1000.0))),
+            excludeId()));
+
+    private final MongoCollection<Document> logs;
+    private final UrlDictionary urls;
+
+    CompactLogStore(MongoDatabase database) {
+        logs = database.getCollection(COLLECTION);
+        urls = new UrlDictionary(database);
+        logs.createIndexes(Arrays.asList(
+                new IndexModel(Indexes.compoundIndex(Indexes.ascending("u"), Indexes.descending("i"))),
+                new IndexModel(Indexes.compoundIndex(Indexes.ascending("i"), Indexes.descending("u"))),
+                new IndexModel(Indexes.compoundIndex(Indexes.ascending("t"), Indexes.descending("u")))));
+    }
+
+    @Override
+    public Map<Integer, String> insert(List<LogRecord> records) {
+        Set<String> batchUrls = new HashSet<>();
+        for (LogRecord record : records)
+            batchUrls.add(record.getUrl());
+        Map<String, Integer> ids = urls.ids(batchUrls);
+
+        List<Document> documents = new ArrayList<>(records.size());
+        for (LogRecord record : records)
+            documents.add(new Document("u", ids.get(record.getUrl()))
+                    .append("i", encodeIp(record.getIp()))
+                    .append("t", record.getDate())
+                    .append("d", encodeDuration(record.getDuration())));
+        Map<Integer, String> failures = new HashMap<>();
+        try {
+            logs.insertMany(documents, new InsertManyOptions().ordered(false));
+        }
+        catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors())
+                failures.put(error.getIndex(), error.getMessage());
+        }
+        return failures;
+    }
+
+    /**
+     * @param ip IPv4 address of four dot separated octets
+     * @return octets packed into int, the first octet is the highest byte
+     */
+    static int encodeIp(String ip) {
+        int value = 0, octet = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                value = value << 8 | octet;
+                octet = 0;
+            }
+            else
+                octet = octet * 10 + (c - '0');
+        }
+        return value << 8 | octet;
+    }
+    /**
+     * @return milliseconds as int32 when they fit, else int64
+     */
+    static Number encodeDuration(float duration) {
+        long millis = Math.round(duration * 1000.0);
+        return millis == (int) millis ? (Number) (int) millis : (Number) millis;
+    }
+
+    @Override
+    public MongoIterable<Document> findIpsByUrl(String url) {
+        Integer id = urls.find(url);
+        if (id == null)
+            return new ListIterable<>(new ArrayList<>());
+        return logs.aggregate(Arrays.asList(
+                match(eq("u", id)),
+                project(fields(computed("ip", ipString("$i")), excludeId())),
+                sort(descending("ip")))).allowDiskUse(true);
+    }
+    @Override
+    public MongoIterable<Document> findUrlsOfIp(String ip) {
+        return urlsOf(eq("i", encodeIp(ip)));
+    }
+    @Override
+    public MongoIterable<Document> findUrlsInTime(Date dateTime1, Date dateTime2) {
+        return urlsOf(and(gt("t", dateTime1), lt("t", dateTime2)));
+    }
+    /**
+     * Urls of matching logs with repeats, in descending order.
+     * Logs are counted per url id, only distinct urls are looked up in the dictionary
+     */
+    private MongoIterable<Document> urlsOf(Bson filter) {
+        return logs.aggregate(Arrays.asList(
+                match(filter),
+                group("$u", sum("count", 1)),
+                lookup(UrlDictionary.COLLECTION, "_id", "_id", "url"),
+                project(fields(computed("url", new Document("$arrayElemAt", Arrays.asList("$url.url", 0))),
+                        include("count"))),
+                sort(descending("url")),
+                project(fields(include("url"),
+                        computed("repeat", new Document("$range", Arrays.asList(0, "$count"))), excludeId())),
+                unwind("$repeat"),
+                project(fields(include("url"), excludeId())))).allowDiskUse(true);
+    }
+
+    /**
+     * Runs the pipeline over decoded logs. Url and ip keys of the first $group stage,
+     * e.g. {$group: {_id: "$url"}} or {$group: {_id: {url: "$url", ...}}},
+     * stay encoded while logs are grouped and are decoded right after the stage
+     */
+    @Override
+    public AggregateIterable<Document> report(List<Bson> pipeline, Date dateTime1, Date dateTime2) {
+        List<Bson> stages = new ArrayList<>();
+        if (dateTime1 != null && dateTime2 != null)
+            stages.add(match(and(gte("t", dateTime1), lt("t", dateTime2))));
+        stages.add(DECODED_FIELDS);
+        boolean decoded = false;
+        for (Bson stage : pipeline) {
+            stages.add(stage);
+            if (decoded)
+                continue;
+            BsonDocument document = stage.toBsonDocument(BsonDocument.class, logs.getCodecRegistry());
+            if (document.containsKey("$group")) {
+                addKeyDecoding(stages, document.getDocument("$group").get("_id"), "_id");
+                decoded = true;
+            }
+        }
+        return logs.aggregate(stages);
+    }
+    private static void addKeyDecoding(List<Bson> stages, BsonValue key, String path) {
+        if (key == null)
+            return;
+        if (key.isDocument()) {
+            for (Map.Entry<String, BsonValue> field : key.asDocument().entrySet())
+                addKeyDecoding(stages, field.getValue(), path + "." + field.getKey());
+        }
+        else if (key.equals(new BsonString("$url"))) {
+            stages.add(lookup(UrlDictionary.COLLECTION, path, "_id", "_url"));
+            stages.add(addFields(new Field<>(path, new Document("$arrayElemAt", Arrays.asList("$_url.url", 0)))));
+            stages.add(project(exclude("_url")));
+        }
+        else if (key.equals(new BsonString("$ip")))
+            stages.add(addFields(new Field<>(path, ipString("$" + path))));
+    }
+
+    /**
+     * Expression of dotted quad string of int32 ip. Octets are computed from the unsigned value,
+     * $substr converts numbers to strings
+     */
+    static Document ipString(String ip) {
+        Document unsigned = new Document("$cond", Arrays.asList(
+                new Document("$lt", Arrays.asList(ip, 0)), new Document("$add", Arrays.asList(ip, 1L << 32)), ip));
+        List<Object> parts = new ArrayList<>();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            Document octet = new Document("$mod", Arrays.asList(
+                    new Document("$floor", new Document("$divide", Arrays.asList(unsigned, 1L << shift))), 256));
+            if (shift < 24)
+                parts.add(".");
+            parts.add(new Document("$substr", Arrays.asList(octet, 0, -1)));
+        }
+        return new Document("$concat", parts);
+    }
+}
@@ -0,0 +1,169 @@
+package mongo.db;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Metrics kept in memory: counters of parsed, rejected, inserted and duplicate lines,
+ * latency histograms of parsing, inserts and every query method, gauges of operations in flight.
+ * Recording doesn't lock and doesn't allocate once a rejection reason or query method was seen.
+ * The metrics may be published to JMX by {@link #register(String)}
+ */
+public class DefaultLogMetrics implements LogMetrics, LogMetricsMXBean {
+    /**
+     * Write errors contain values of documents, so count of distinct reasons is limited
+     */
+    static final int MAX_REASONS = 64;
+    static final String OTHER_REASON = "other";
+
+    private final LongAdder parsed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder inserted = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> rejectedByReason = new ConcurrentHashMap<>();
+    private final AtomicInteger insertsInFlight = new AtomicInteger();
+    private final AtomicInteger queriesInFlight = new AtomicInteger();
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LatencyHistogram insertLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, LatencyHistogram> queryLatencies = new ConcurrentHashMap<>();
+
+    @Override
+    public void parsed(long nanos) {
+        parsed.increment();
+        parseLatency.record(nanos);
+    }
+    @Override
+    public void rejected(String reason) {
+        rejected.increment();
+        if (reason == null)
+            reason = OTHER_REASON;
+        LongAdder counter = rejectedByReason.get(reason);
+        if (counter == null)
+            counter = rejectedByReason.size() < MAX_REASONS
+                    ? rejectedByReason.computeIfAbsent(reason, r -> new LongAdder())
+                    : rejectedByReason.computeIfAbsent(OTHER_REASON, r -> new LongAdder());
+        counter.increment();
+    }
+    @Override
+    public void duplicated(int count) {
+        duplicates.add(count);
+    }
+    @Override
+    public void insertStarted() {
+        insertsInFlight.incrementAndGet();
+    }
+    @Override
+    public void insertFinished(int count, long nanos) {
+        insertsInFlight.decrementAndGet();
+        inserted.add(count);
+        insertLatency.record(nanos);
+    }
+    @Override
+    public void queryStarted(String method) {
+        queriesInFlight.incrementAndGet();
+    }
+    @Override
+    public void queryFinished(String method, long nanos) {
+        queriesInFlight.decrementAndGet();
+        LatencyHistogram latency = queryLatencies.get(method);
+        if (latency == null)
+            latency = queryLatencies.computeIfAbsent(method, m -> new LatencyHistogram());
+        latency.record(nanos);
+    }
+
+    @Override
+    public long getParsedCount() {
+        return parsed.sum();
+    }
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+    @Override
+    public Map<String, Long> getRejectedByReason() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : rejectedByReason.entrySet())
+            counts.put(counter.getKey(), counter.getValue().sum());
+        return counts;
+    }
+    @Override
+    public long getInsertedCount() {
+        return inserted.sum();
+    }
+    @Override
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+    @Override
+    public int getInsertsInFlight() {
+        return insertsInFlight.get();
+    }
+    @Override
+    public int getQueriesInFlight() {
+        return queriesInFlight.get();
+    }
+    @Override
+    public LatencyHistogram getParseLatency() {
+        return parseLatency;
+    }
+    @Override
+    public LatencyHistogram getInsertLatency() {
+        return insertLatency;
+    }
+    @Override
+    public Map<String, LatencyHistogram> getQueryLatencies() {
+        return new TreeMap<>(queryLatencies);
+    }
+
+    /**
+     * Clears counters and histograms, gauges of operations in flight are kept
+     */
+    @Override
+    public void reset() {
+        parsed.reset();
+        rejected.reset();
+        inserted.reset();
+        duplicates.reset();
+        rejectedByReason.clear();
+        parseLatency.reset();
+        insertLatency.reset();
+        queryLatencies.clear();
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server
+     * @param name distinguishes handlers of one process
+     * @return name of registered MBean, mongo.db:type=LogMetrics,name=...
+     * @throws IllegalStateException if the name is taken or incorrect
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("mongo.db:type=LogMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("metrics can't be registered as " + name, e);
+        }
+    }
+    public void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException e) {
+            throw new IllegalStateException("metrics can't be unregistered", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "parsed: " + getParsedCount() + ", rejected: " + getRejectedCount()
+                + ", inserted: " + getInsertedCount() + ", duplicates: " + getDuplicateCount()
+                + ", inserts in flight: " + getInsertsInFlight()
+                + ", queries in flight: " + getQueriesInFlight();
+    }
+}
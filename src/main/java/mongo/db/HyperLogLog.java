@@ -0,0 +1,99 @@
+package mongo.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate count of distinct strings in 2^precision one byte registers,
+ * standard error is about 1.04 / sqrt(2^precision).
+ * Registers are packed by 8 in longs and updated by compare-and-set, so adding is thread safe without locks
+ */
+class HyperLogLog {
+    private final int precision;
+    private final AtomicLongArray registers;
+
+    HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision must be from 4 to 16");
+        this.precision = precision;
+        registers = new AtomicLongArray(1 << (precision - 3));
+    }
+    HyperLogLog(byte[] registers) {
+        this(Integer.numberOfTrailingZeros(registers.length));
+        merge(registers);
+    }
+
+    void add(String value) {
+        long hash = hash(value);
+        int index = (int) (hash >>> (64 - precision));
+        int rank = Math.min(Long.numberOfLeadingZeros(hash << precision) + 1, 64 - precision + 1);
+        update(index, rank);
+    }
+    /**
+     * Union with registers of a sketch of the same precision
+     */
+    void merge(byte[] registers) {
+        if (registers.length != this.registers.length() * 8)
+            throw new IllegalArgumentException("precision of registers differs");
+        for (int i = 0; i < registers.length; i++)
+            update(i, registers[i]);
+    }
+    /**
+     * Raises the register to rank, a concurrent update of another register of the same long is retried
+     */
+    private void update(int index, int rank) {
+        int shift = (index & 7) * 8;
+        while (true) {
+            long packed = registers.get(index >>> 3);
+            if (rank <= (packed >>> shift & 0xFF))
+                return;
+            long updated = packed & ~(0xFFL << shift) | (long) rank << shift;
+            if (registers.compareAndSet(index >>> 3, packed, updated))
+                return;
+        }
+    }
+
+    long estimate() {
+        byte[] registers = toBytes();
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0)
+                zeros++;
+        }
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0)
+            estimate = m * Math.log((double) m / zeros);
+        return Math.round(estimate);
+    }
+
+    byte[] toBytes() {
+        byte[] bytes = new byte[registers.length() * 8];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) (registers.get(i >>> 3) >>> (i & 7) * 8);
+        return bytes;
+    }
+
+    /**
+     * 64 bit FNV-1a of chars with murmur3 finalizer for well mixed high bits
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "~" + estimate() + " distinct";
+    }
+}
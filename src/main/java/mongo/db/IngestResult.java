@@ -0,0 +1,79 @@
+package mongo.db;
+
+import java.util.*;
+
+
+/**
+ * Result of bulk insertion of csv logs:
+ * count of inserted documents, count of skipped duplicates and rejected lines with reasons
+ */
+public class IngestResult {
+    private long insertedCount;
+    private long duplicateCount;
+    private final List<Rejection> rejections = new ArrayList<>();
+
+    public long getInsertedCount() {
+        return insertedCount;
+    }
+    /**
+     * @return count of valid logs which were inserted before, counted only with deduplication enabled
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+    public long getRejectedCount() {
+        return rejections.size();
+    }
+    /**
+     * @return rejected lines in order of detection
+     */
+    public List<Rejection> getRejections() {
+        return Collections.unmodifiableList(rejections);
+    }
+
+    void addInserted(long count) {
+        insertedCount += count;
+    }
+    void addDuplicates(long count) {
+        duplicateCount += count;
+    }
+    void reject(long lineNumber, String reason) {
+        rejections.add(new Rejection(lineNumber, reason));
+    }
+    void merge(IngestResult other, long lineOffset) {
+        insertedCount += other.insertedCount;
+        duplicateCount += other.duplicateCount;
+        for (Rejection rejection : other.rejections)
+            reject(rejection.lineNumber + lineOffset, rejection.reason);
+    }
+
+    @Override
+    public String toString() {
+        return "inserted: " + insertedCount + ", duplicates: " + duplicateCount + ", rejected: " + rejections.size();
+    }
+
+    /**
+     * Line that wasn't inserted, line numbers start from 1
+     */
+    public static class Rejection {
+        private final long lineNumber;
+        private final String reason;
+
+        Rejection(long lineNumber, String reason) {
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+        }
+
+        public long getLineNumber() {
+            return lineNumber;
+        }
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return lineNumber + ": " + reason;
+        }
+    }
+}
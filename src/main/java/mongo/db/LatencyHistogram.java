@@ -0,0 +1,86 @@
+package mongo.db;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Histogram of latencies with power of two buckets.
+ * Recording is lock free and doesn't allocate,
+ * percentiles are upper bounds of their buckets, so they are accurate within a factor of 2
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Bucket i holds latencies in [2^(i-1), 2^i) nanoseconds, bucket 0 holds zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+    public long getMeanNanos() {
+        long count = this.count.sum();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+    public long getMedianNanos() {
+        return getPercentileNanos(0.5);
+    }
+    public long getP99Nanos() {
+        return getPercentileNanos(0.99);
+    }
+
+    /**
+     * @param quantile from 0 to 1
+     * @return upper bound of latencies of the given quantile of recorded operations
+     */
+    public long getPercentileNanos(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("quantile must be from 0 to 1");
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min((1L << i) - 1, getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", mean: " + getMeanNanos() + "ns, median: " + getMedianNanos()
+                + "ns, p99: " + getP99Nanos() + "ns, max: " + getMaxNanos() + "ns";
+    }
+}
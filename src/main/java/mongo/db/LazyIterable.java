@@ -0,0 +1,47 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.client.*;
+import java.util.*;
+import java.util.function.Supplier;
+
+
+/**
+ * Results which are computed in memory when they are read, like results of a server query,
+ * e.g. merged results of several queries
+ */
+class LazyIterable<T> implements MongoIterable<T> {
+    private final Supplier<List<T>> query;
+
+    LazyIterable(Supplier<List<T>> query) {
+        this.query = query;
+    }
+
+    @Override
+    public MongoCursor<T> iterator() {
+        return new ListIterable<>(query.get()).iterator();
+    }
+    @Override
+    public T first() {
+        List<T> results = query.get();
+        return results.isEmpty() ? null : results.get(0);
+    }
+    @Override
+    public <U> MongoIterable<U> map(Function<T, U> mapper) {
+        return new ListIterable<>(query.get()).map(mapper);
+    }
+    @Override
+    public void forEach(Block<? super T> block) {
+        for (T result : query.get())
+            block.apply(result);
+    }
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        target.addAll(query.get());
+        return target;
+    }
+    @Override
+    public MongoIterable<T> batchSize(int batchSize) {
+        return this;
+    }
+}
@@ -0,0 +1,76 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.client.*;
+import java.util.*;
+
+
+/**
+ * MongoIterable over results which are already loaded into memory
+ */
+class ListIterable<T> implements MongoIterable<T> {
+    private final List<T> results;
+
+    ListIterable(List<T> results) {
+        this.results = results;
+    }
+
+    List<T> getResults() {
+        return results;
+    }
+
+    @Override
+    public MongoCursor<T> iterator() {
+        Iterator<T> iterator = results.iterator();
+        return new MongoCursor<T>() {
+            @Override
+            public void close() {
+            }
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+            @Override
+            public T tryNext() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+            @Override
+            public ServerCursor getServerCursor() {
+                return null;
+            }
+            @Override
+            public ServerAddress getServerAddress() {
+                return null;
+            }
+        };
+    }
+    @Override
+    public T first() {
+        return results.isEmpty() ? null : results.get(0);
+    }
+    @Override
+    public <U> MongoIterable<U> map(Function<T, U> mapper) {
+        List<U> mapped = new ArrayList<>(results.size());
+        for (T result : results)
+            mapped.add(mapper.apply(result));
+        return new ListIterable<>(mapped);
+    }
+    @Override
+    public void forEach(Block<? super T> block) {
+        for (T result : results)
+            block.apply(result);
+    }
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        target.addAll(results);
+        return target;
+    }
+    @Override
+    public MongoIterable<T> batchSize(int batchSize) {
+        return this;
+    }
+}
@@ -0,0 +1,150 @@
+package mongo.db;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * End-to-end load test of ingestion with synthetic logs of {@link LogGenerator}.
+ * Arguments are --name=value options:
+ * <ul>
+ * <li>mode: file writes lines to a csv file, ingest inserts them by the handler (default)</li>
+ * <li>lines: count of lines in file mode (default 10000000)</li>
+ * <li>duration: seconds of ingestion (default 60)</li>
+ * <li>threads: count of inserting threads (default count of processors)</li>
+ * <li>urls, zipf, ips, invalid, seed: distribution of logs, see {@link LogGenerator}</li>
+ * <li>file: csv file of file mode (default logs.csv)</li>
+ * <li>host, port, db: database of ingest mode (default localhost, 27017, serverlogs_load)</li>
+ * <li>drop: true drops the database before ingestion</li>
+ * </ul>
+ * Ingest mode reports inserted logs per second, latencies of batches
+ * and growth of data and indexes of the database
+ */
+public class LoadTest {
+    private static final long REPORT_INTERVAL = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+                throw new IllegalArgumentException("options must be --name=value: " + arg);
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        LogGenerator generator = new LogGenerator(
+                Integer.parseInt(options.getOrDefault("urls", "10000")),
+                Double.parseDouble(options.getOrDefault("zipf", "1.0")),
+                Integer.parseInt(options.getOrDefault("ips", "100000")),
+                2000, 2017,
+                Double.parseDouble(options.getOrDefault("invalid", "0")),
+                Long.parseLong(options.getOrDefault("seed", Long.toString(System.nanoTime()))));
+        String mode = options.getOrDefault("mode", "ingest");
+        if (mode.equals("file"))
+            writeFile(generator, Paths.get(options.getOrDefault("file", "logs.csv")),
+                    Long.parseLong(options.getOrDefault("lines", "10000000")));
+        else if (mode.equals("ingest"))
+            ingest(generator, options);
+        else
+            throw new IllegalArgumentException("mode must be file or ingest");
+    }
+
+    private static void writeFile(LogGenerator generator, Path file, long lines) throws IOException {
+        long start = System.nanoTime();
+        generator.write(file, lines);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d lines written to %s in %.1fs, %.0f lines/s%n", lines, file, seconds, lines / seconds);
+    }
+
+    private static void ingest(LogGenerator generator, Map<String, String> options) throws InterruptedException {
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        if (duration <= 0 || threads < 1)
+            throw new IllegalArgumentException("duration and count of threads must be positive");
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "27017"));
+        String databaseName = options.getOrDefault("db", "serverlogs_load");
+        if (Boolean.parseBoolean(options.getOrDefault("drop", "false"))) {
+            // the handler creates indexes, so it's created again after dropping
+            MongoLogHandler dropped = new MongoLogHandler(host, port, databaseName);
+            dropped.getDatabase().drop();
+            dropped.close();
+        }
+        MongoLogHandler handler = new MongoLogHandler(host, port, databaseName);
+        try {
+            Document before = stats(handler.getDatabase());
+            LatencyHistogram latencies = new LatencyHistogram();
+            LongAdder inserted = new LongAdder();
+            LongAdder rejected = new LongAdder();
+            long start = System.nanoTime();
+            long end = start + duration;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++)
+                futures.add(executor.submit(insert(handler, generator.split(), end, latencies, inserted, rejected)));
+            executor.shutdown();
+            long reported = 0;
+            while (!executor.awaitTermination(REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                long count = inserted.sum();
+                System.out.printf("%.0fs: %d logs/s, %d inserted, batches %s%n",
+                        (System.nanoTime() - start) / 1e9, (count - reported) * 1000 / REPORT_INTERVAL, count, latencies);
+                reported = count;
+            }
+            for (Future<?> future : futures)
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    System.err.println("Inserting thread failed: " + e.getCause());
+                }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Document after = stats(handler.getDatabase());
+
+            System.out.printf("%d logs inserted, %d rejected in %.1fs on %d threads: %.0f logs/s%n",
+                    inserted.sum(), rejected.sum(), seconds, threads, inserted.sum() / seconds);
+            System.out.printf("batch of %d latency: median %.2fms, p90 %.2fms, p99 %.2fms, max %.2fms%n",
+                    handler.getBatchSize(), latencies.getMedianNanos() / 1e6, latencies.getPercentileNanos(0.9) / 1e6,
+                    latencies.getP99Nanos() / 1e6, latencies.getMaxNanos() / 1e6);
+            for (String field : Arrays.asList("objects", "dataSize", "storageSize", "indexSize")) {
+                long growth = ((Number) after.get(field)).longValue() - ((Number) before.get(field)).longValue();
+                System.out.printf("%s: %d -> %d (%+d, %.1f per log)%n", field, ((Number) before.get(field)).longValue(),
+                        ((Number) after.get(field)).longValue(), growth, (double) growth / Math.max(1, inserted.sum()));
+            }
+        }
+        finally {
+            handler.close();
+        }
+    }
+
+    /**
+     * Inserts generated batches of the handler batch size until the end time
+     */
+    private static Runnable insert(MongoLogHandler handler, LogGenerator generator, long end, LatencyHistogram latencies,
+                                   LongAdder inserted, LongAdder rejected) {
+        return () -> {
+            List<String> batch = new ArrayList<>(handler.getBatchSize());
+            while (System.nanoTime() < end) {
+                batch.clear();
+                for (int i = handler.getBatchSize(); i > 0; i--)
+                    batch.add(generator.nextLine());
+                long start = System.nanoTime();
+                IngestResult result = handler.insertLogs(batch);
+                latencies.record(System.nanoTime() - start);
+                inserted.add(result.getInsertedCount());
+                rejected.add(result.getRejectedCount());
+            }
+        };
+    }
+
+    /**
+     * dbStats of the database, so growth of every storage layout and tier is counted
+     */
+    private static Document stats(MongoDatabase database) {
+        return database.runCommand(new Document("dbStats", 1));
+    }
+}
@@ -0,0 +1,138 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Sorts.*;
+import org.bson.*;
+import org.bson.types.Binary;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+
+/**
+ * Inserts logs with _id computed from their content, so a log inserted again
+ * is refused by the _id index instead of becoming a duplicate.
+ * Ids of inserted logs are kept in a Bloom filter: logs which may be inserted already
+ * are looked up by one query per batch and skipped, the rest are inserted without lookups.
+ * Only logs inserted with content ids are recognized, logs inserted before keep ObjectId ids
+ */
+class LogDeduplicator {
+    static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 isn't supported", e);
+        }
+    });
+
+    private final MongoCollection<Document> collection;
+    private final MongoCollection<LogRecord> recordCollection;
+    private final BloomFilter filter;
+
+    /**
+     * @param recordCollection collection which encodes content ids, see {@link LogRecordCodec#LogRecordCodec(boolean)}
+     * @param expectedCount count of logs kept in the filter with 1% of false positives
+     */
+    LogDeduplicator(MongoCollection<Document> collection, MongoCollection<LogRecord> recordCollection,
+                    long expectedCount) {
+        this.collection = collection;
+        this.recordCollection = recordCollection;
+        filter = new BloomFilter(expectedCount, FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Adds ids of the latest logs by datetime to the filter
+     * @return count of added ids
+     */
+    int warmUp(int count) {
+        int added = 0;
+        for (Document document : collection.find(type("_id", BsonType.BINARY))
+                .sort(descending("datetime")).limit(count).projection(include("_id"))) {
+            put(document.get("_id", Binary.class).getData());
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Inserts logs which aren't inserted yet
+     * @param duplicates receives indexes of logs inserted before, also within the batch
+     * @return write errors by index in batch, duplicates aren't errors
+     */
+    Map<Integer, String> insert(List<LogRecord> batch, BitSet duplicates) {
+        Binary[] ids = new Binary[batch.size()];
+        List<Binary> candidates = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            ids[i] = id(batch.get(i));
+            if (mightContain(ids[i].getData()))
+                candidates.add(ids[i]);
+        }
+        Set<Binary> existing = new HashSet<>();
+        if (!candidates.isEmpty())
+            for (Document document : collection.find(in("_id", candidates)).projection(include("_id")))
+                existing.add(document.get("_id", Binary.class));
+
+        List<LogRecord> inserted = new ArrayList<>(batch.size());
+        int[] indexes = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            if (existing.contains(ids[i]))
+                duplicates.set(i);
+            else {
+                indexes[inserted.size()] = i;
+                inserted.add(batch.get(i));
+            }
+        }
+        Map<Integer, String> failures = new HashMap<>();
+        if (!inserted.isEmpty()) {
+            try {
+                recordCollection.insertMany(inserted, new InsertManyOptions().ordered(false));
+            }
+            catch (MongoBulkWriteException e) {
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() == DUPLICATE_KEY_ERROR)
+                        duplicates.set(indexes[error.getIndex()]);
+                    else
+                        failures.put(indexes[error.getIndex()], error.getMessage());
+                }
+            }
+        }
+        for (int i = 0; i < ids.length; i++)
+            if (!failures.containsKey(i))
+                put(ids[i].getData());
+        return failures;
+    }
+
+    private void put(byte[] id) {
+        ByteBuffer buffer = ByteBuffer.wrap(id);
+        filter.put(buffer.getLong(0), buffer.getLong(8));
+    }
+    private boolean mightContain(byte[] id) {
+        ByteBuffer buffer = ByteBuffer.wrap(id);
+        return filter.mightContain(buffer.getLong(0), buffer.getLong(8));
+    }
+
+    /**
+     * 128 bit MD5 of ip, datetime in milliseconds, duration and url,
+     * so equal logs get equal ids whatever the spacing and format of their csv lines
+     */
+    static Binary id(LogRecord record) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(record.getIp().getBytes(StandardCharsets.UTF_8));
+        digest.update(ByteBuffer.allocate(13)
+                .put((byte) 0)
+                .putLong(record.getDatetime())
+                .putFloat(record.getDuration() == 0 ? 0 : record.getDuration())
+                .array());
+        digest.update(record.getUrl().getBytes(StandardCharsets.UTF_8));
+        return new Binary(digest.digest());
+    }
+}
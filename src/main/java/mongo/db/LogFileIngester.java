@@ -0,0 +1,265 @@
+package mongo.db;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.InvalidParameterException;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Loads csv log files of any size into 'logs' collection.
+ * The file is memory mapped by regions of up to 1GB which are split
+ * into chunks on line boundaries, chunks are parsed on all cores and valid records are passed
+ * through a bounded queue to batch writers,
+ * so memory usage doesn't depend on the file size
+ */
+public class LogFileIngester {
+    private static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+    private static final int DEFAULT_WRITER_THREADS = 4;
+    private static final int REGION_SIZE = 1 << 30;
+
+    private final MongoLogHandler handler;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int parserThreads = Runtime.getRuntime().availableProcessors();
+    private int writerThreads = DEFAULT_WRITER_THREADS;
+
+    public LogFileIngester(MongoLogHandler handler) {
+        this.handler = handler;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunk size must be positive");
+        this.chunkSize = chunkSize;
+    }
+    public void setParserThreads(int parserThreads) {
+        if (parserThreads < 1)
+            throw new IllegalArgumentException("count of parser threads must be positive");
+        this.parserThreads = parserThreads;
+    }
+    public void setWriterThreads(int writerThreads) {
+        if (writerThreads < 1)
+            throw new IllegalArgumentException("count of writer threads must be positive");
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * @param path csv file with one log per line
+     * @return count of inserted documents, numbers and reasons of rejected lines
+     * @throws IOException if file can't be read
+     */
+    public IngestResult ingestFile(Path path) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        Semaphore chunkPermits = new Semaphore(parserThreads * 2);
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(writerThreads * 2);
+        ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+        List<Thread> writers = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < writerThreads; i++) {
+                Thread writer = new Thread(() -> write(batches), "log-writer-" + i);
+                writer.start();
+                writers.add(writer);
+            }
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(Math.max(chunkSize, REGION_SIZE), size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean lastRegion = position + length == size;
+                int start = 0;
+                while (start < length) {
+                    int end = (int) Math.min(start + (long) chunkSize, length);
+                    if (end < length || !lastRegion) {
+                        int lineEnd = afterLastLine(region, start, end);
+                        if (lineEnd < 0)
+                            lineEnd = afterFirstLine(region, end, (int) length);
+                        if (lineEnd < 0 && !lastRegion)
+                            break;
+                        end = lineEnd < 0 ? (int) length : lineEnd;
+                    }
+
+                    ByteBuffer buffer = region.duplicate();
+                    buffer.position(start).limit(end);
+                    submit(new Chunk(buffer.slice()), chunks, chunkPermits, parsers, batches);
+                    start = end;
+                }
+                if (start == 0)
+                    throw new IOException("line at byte " + position + " is longer than " + length + " bytes");
+                position += start;
+            }
+            parsers.shutdown();
+            parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            for (int i = 0; i < writerThreads; i++)
+                batches.put(Batch.END);
+            for (Thread writer : writers)
+                writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ingestion of " + path + " was interrupted");
+        }
+        finally {
+            // writers wait for batches forever if reading failed, they are already finished otherwise
+            parsers.shutdownNow();
+            for (Thread writer : writers)
+                writer.interrupt();
+        }
+
+        IngestResult result = new IngestResult();
+        long lineOffset = 0;
+        for (Chunk chunk : chunks) {
+            result.merge(chunk.result, lineOffset);
+            synchronized (chunk.writeResults) {
+                for (IngestResult writeResult : chunk.writeResults)
+                    result.merge(writeResult, lineOffset);
+            }
+            lineOffset += chunk.lineCount;
+        }
+        return result;
+    }
+
+    private void submit(Chunk chunk, List<Chunk> chunks, Semaphore chunkPermits,
+                        ExecutorService parsers, BlockingQueue<Batch> batches) throws InterruptedException {
+        chunks.add(chunk);
+        chunkPermits.acquire();
+        parsers.execute(() -> {
+            try {
+                parse(chunk, batches);
+            }
+            finally {
+                chunkPermits.release();
+            }
+        });
+    }
+
+    /**
+     * @return index after the first line break in [start, end) or -1 if there is no line break
+     */
+    private static int afterFirstLine(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (buffer.get(i) == '\n')
+                return i + 1;
+        return -1;
+    }
+    /**
+     * @return index after the last line break in [start, end) or -1 if there is no line break
+     */
+    private static int afterLastLine(ByteBuffer buffer, int start, int end) {
+        for (int i = end - 1; i >= start; i--)
+            if (buffer.get(i) == '\n')
+                return i + 1;
+        return -1;
+    }
+
+    private void parse(Chunk chunk, BlockingQueue<Batch> batches) {
+        int batchSize = handler.getBatchSize();
+        LogMetrics metrics = handler.getMetrics();
+        ByteBuffer buffer = chunk.buffer;
+        LogRecord record = new LogRecord();
+        byte[] line = new byte[256];
+        Batch batch = new Batch(chunk, batchSize);
+        long lineNumber = 0;
+        int start = 0;
+        int limit = buffer.limit();
+        try {
+            while (start < limit) {
+                int end = start;
+                while (end < limit && buffer.get(end) != '\n')
+                    end++;
+                int next = end + 1;
+                if (end > start && buffer.get(end - 1) == '\r')
+                    end--;
+                lineNumber++;
+
+                int length = end - start;
+                if (line.length < length)
+                    line = new byte[Math.max(length, line.length * 2)];
+                buffer.position(start);
+                buffer.get(line, 0, length);
+                start = next;
+                try {
+                    handler.parse(new String(line, 0, length, StandardCharsets.UTF_8), record, metrics);
+                }
+                catch (InvalidParameterException e) {
+                    chunk.result.reject(lineNumber, e.getMessage());
+                    continue;
+                }
+                batch.add(record, lineNumber);
+                record = new LogRecord();
+                if (batch.records.size() == batchSize) {
+                    batches.put(batch);
+                    batch = new Batch(chunk, batchSize);
+                }
+            }
+            if (!batch.records.isEmpty())
+                batches.put(batch);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            chunk.lineCount = lineNumber;
+            chunk.buffer = null;
+        }
+    }
+
+    private void write(BlockingQueue<Batch> batches) {
+        try {
+            Batch batch;
+            while ((batch = batches.take()) != Batch.END) {
+                IngestResult result = new IngestResult();
+                try {
+                    handler.insertBatch(batch.records, batch.lineNumbers, result);
+                }
+                catch (RuntimeException e) {
+                    for (int i = 0; i < batch.records.size(); i++)
+                        result.reject(batch.lineNumbers[i], e.getMessage());
+                }
+                synchronized (batch.chunk.writeResults) {
+                    batch.chunk.writeResults.add(result);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Part of the file with whole lines, line numbers inside are counted from the chunk start
+     */
+    private static class Chunk {
+        private ByteBuffer buffer;
+        private final IngestResult result = new IngestResult();
+        private final List<IngestResult> writeResults = new ArrayList<>();
+        private volatile long lineCount;
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Batch {
+        private static final Batch END = new Batch(null, 0);
+
+        private final Chunk chunk;
+        private final List<LogRecord> records;
+        private final long[] lineNumbers;
+
+        Batch(Chunk chunk, int size) {
+            this.chunk = chunk;
+            records = new ArrayList<>(size);
+            lineNumbers = new long[size];
+        }
+
+        void add(LogRecord record, long lineNumber) {
+            lineNumbers[records.size()] = lineNumber;
+            records.add(record);
+        }
+    }
+}
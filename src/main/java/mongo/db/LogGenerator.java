@@ -0,0 +1,166 @@
+package mongo.db;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.*;
+
+
+/**
+ * Synthetic csv logs in the format accepted by {@link MongoLogHandler#isValid(String)}:
+ * urls follow Zipf distribution, ips are uniform over a pool, dates are uniform over days
+ * of the chosen years with more logs in the daytime, durations are log-normal.
+ * A share of lines is invalid in the ways the parser rejects.
+ * A generator isn't thread safe, {@link #split()} gives independent generators for other threads
+ */
+public class LogGenerator {
+    private static final int DEFAULT_URLS = 10_000;
+    private static final int DEFAULT_IPS = 100_000;
+    /**
+     * Relative count of logs in every hour of a day
+     */
+    private static final int[] HOUR_WEIGHTS = {3, 2, 1, 1, 1, 2, 4, 6, 8, 9, 10, 10, 10, 10, 10, 9, 9, 9, 9, 8, 7, 6, 5, 4};
+    private static final String[] INVALID_LINES = {
+            "10.0.0.1, 2017-10-31T21:33:06, 10.5",
+            "10.0.300.1, 2017-10-31T21:33:06, 10.5, http://www.example.com/page/0",
+            "10.0.0.1, 2017-13-31T21:33:06, 10.5, http://www.example.com/page/0",
+            "10.0.0.1, 2017-10-31T21:33:06, 10.5, http://www.example.com/page 0",
+            ""};
+
+    private final SplittableRandom random;
+    private final String[] urls;
+    private final double[] urlWeights;
+    private final int ips;
+    private final String[] days;
+    private final byte[] hours;
+    private final double invalidRatio;
+    private final StringBuilder line = new StringBuilder(128);
+
+    public LogGenerator() {
+        this(DEFAULT_URLS, 1.0, DEFAULT_IPS, 2000, 2017, 0, System.nanoTime());
+    }
+    /**
+     * @param urlCount count of distinct urls
+     * @param zipfExponent skew of urls, the url of rank k is drawn with weight 1 / k^zipfExponent
+     * @param ipCount count of distinct ips, at most 2^24
+     * @param firstYear first year of dates, the parser accepts years 2000-2017
+     * @param lastYear last year of dates, inclusive
+     * @param invalidRatio share of invalid lines from 0 to 1
+     * @param seed equal seeds give equal logs
+     */
+    public LogGenerator(int urlCount, double zipfExponent, int ipCount, int firstYear, int lastYear,
+                        double invalidRatio, long seed) {
+        if (urlCount < 1)
+            throw new IllegalArgumentException("count of urls must be positive");
+        if (zipfExponent < 0)
+            throw new IllegalArgumentException("zipf exponent must not be negative");
+        if (ipCount < 1 || ipCount > 1 << 24)
+            throw new IllegalArgumentException("count of ips must be from 1 to 2^24");
+        if (firstYear < 2000 || lastYear > 2017 || firstYear > lastYear)
+            throw new IllegalArgumentException("years must be from 2000 to 2017, first year not after last year");
+        if (invalidRatio < 0 || invalidRatio > 1)
+            throw new IllegalArgumentException("invalid ratio must be from 0 to 1");
+        random = new SplittableRandom(seed);
+        urls = new String[urlCount];
+        urlWeights = new double[urlCount];
+        double total = 0;
+        for (int i = 0; i < urlCount; i++) {
+            urls[i] = "http://www.example.com/page/" + Integer.toString(i, 36);
+            total += 1 / Math.pow(i + 1, zipfExponent);
+            urlWeights[i] = total;
+        }
+        for (int i = 0; i < urlCount; i++)
+            urlWeights[i] /= total;
+        ips = ipCount;
+        LocalDate first = LocalDate.of(firstYear, 1, 1);
+        days = new String[(int) ChronoUnit.DAYS.between(first, LocalDate.of(lastYear + 1, 1, 1))];
+        for (int i = 0; i < days.length; i++)
+            days[i] = first.plusDays(i).toString();
+        int weights = IntStream.of(HOUR_WEIGHTS).sum();
+        hours = new byte[weights];
+        for (int hour = 0, i = 0; hour < HOUR_WEIGHTS.length; hour++)
+            for (int j = 0; j < HOUR_WEIGHTS[hour]; j++)
+                hours[i++] = (byte) hour;
+        this.invalidRatio = invalidRatio;
+    }
+    private LogGenerator(LogGenerator generator) {
+        random = generator.random.split();
+        urls = generator.urls;
+        urlWeights = generator.urlWeights;
+        ips = generator.ips;
+        days = generator.days;
+        hours = generator.hours;
+        invalidRatio = generator.invalidRatio;
+    }
+
+    /**
+     * @return generator of the same logs distribution with another random sequence
+     */
+    public LogGenerator split() {
+        return new LogGenerator(this);
+    }
+
+    /**
+     * @return the next line without line break
+     */
+    public String nextLine() {
+        return appendLine(new StringBuilder(128)).toString();
+    }
+    /**
+     * Appends the next line without line break, lets callers write lines without allocating strings
+     */
+    public StringBuilder appendLine(StringBuilder builder) {
+        if (invalidRatio > 0 && random.nextDouble() < invalidRatio)
+            return builder.append(INVALID_LINES[random.nextInt(INVALID_LINES.length)]);
+        int ip = random.nextInt(ips);
+        builder.append("10.").append(ip >>> 16).append('.').append(ip >>> 8 & 0xFF).append('.').append(ip & 0xFF);
+        builder.append(", ").append(days[random.nextInt(days.length)]).append('T');
+        appendTwoDigits(builder, hours[random.nextInt(hours.length)]).append(':');
+        appendTwoDigits(builder, random.nextInt(60)).append(':');
+        appendTwoDigits(builder, random.nextInt(60));
+        int duration = (int) Math.min(Math.exp(1.5 + gaussian()) * 10, 1_000_000);
+        builder.append(", ").append(duration / 10).append('.').append(duration % 10);
+        return builder.append(", ").append(urls[url()]);
+    }
+    private static StringBuilder appendTwoDigits(StringBuilder builder, int value) {
+        return builder.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+    /**
+     * Binary search of a uniform number in cumulative weights of urls
+     */
+    private int url() {
+        double value = random.nextDouble();
+        int index = Arrays.binarySearch(urlWeights, value);
+        return Math.min(index < 0 ? -index - 1 : index, urls.length - 1);
+    }
+    /**
+     * Standard normal number by Box-Muller transform
+     */
+    private double gaussian() {
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * @return count lines generated when they are read
+     */
+    public Stream<String> lines(long count) {
+        return Stream.generate(this::nextLine).limit(count);
+    }
+    /**
+     * Writes count lines to the file, the file is replaced
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path file, long count) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file),
+                StandardCharsets.UTF_8), 1 << 20)) {
+            for (long i = 0; i < count; i++) {
+                line.setLength(0);
+                appendLine(line).append('\n');
+                writer.append(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package mongo.db;
+
+
+/**
+ * Receives measurements of {@link MongoLogHandler}.
+ * Methods are called on the insert and query paths by many threads,
+ * implementations must be thread safe and cheap. All methods do nothing by default
+ */
+public interface LogMetrics {
+    LogMetrics NONE = new LogMetrics() {
+    };
+
+    /**
+     * Called for every valid csv line
+     * @param nanos time of parsing and validation
+     */
+    default void parsed(long nanos) {
+    }
+    /**
+     * Called for every line which wasn't inserted
+     * @param reason validation or write error
+     */
+    default void rejected(String reason) {
+    }
+
+    /**
+     * Called for valid lines which weren't inserted because they were inserted before
+     */
+    default void duplicated(int count) {
+    }
+
+    default void insertStarted() {
+    }
+    /**
+     * @param count of inserted documents
+     * @param nanos time of the write to the database
+     */
+    default void insertFinished(int count, long nanos) {
+    }
+
+    /**
+     * Called when results of a find or report method are read
+     * @param method name of handler method, e.g. findIpsByUrl
+     */
+    default void queryStarted(String method) {
+    }
+    /**
+     * @param nanos time from the query start until all results are read or the cursor is closed
+     */
+    default void queryFinished(String method, long nanos) {
+    }
+}
@@ -0,0 +1,21 @@
+package mongo.db;
+
+import java.util.*;
+
+
+/**
+ * JMX view of {@link DefaultLogMetrics}
+ */
+public interface LogMetricsMXBean {
+    long getParsedCount();
+    long getRejectedCount();
+    Map<String, Long> getRejectedByReason();
+    long getInsertedCount();
+    long getDuplicateCount();
+    int getInsertsInFlight();
+    int getQueriesInFlight();
+    LatencyHistogram getParseLatency();
+    LatencyHistogram getInsertLatency();
+    Map<String, LatencyHistogram> getQueryLatencies();
+    void reset();
+}
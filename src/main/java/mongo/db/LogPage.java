@@ -0,0 +1,38 @@
+package mongo.db;
+
+import org.bson.*;
+import java.util.*;
+
+
+/**
+ * One page of find results. The next page is requested with {@link #getNextKey()},
+ * it starts right after the last document of this page,
+ * so deep pages are read by the index as fast as the first one
+ */
+public class LogPage {
+    private final List<Document> documents;
+    private final Document nextKey;
+
+    LogPage(List<Document> documents, Document nextKey) {
+        this.documents = Collections.unmodifiableList(documents);
+        this.nextKey = nextKey;
+    }
+
+    public List<Document> getDocuments() {
+        return documents;
+    }
+    /**
+     * @return key of the last document to pass to the next page request, null on the last page
+     */
+    public Document getNextKey() {
+        return nextKey;
+    }
+    public boolean hasNext() {
+        return nextKey != null;
+    }
+
+    @Override
+    public String toString() {
+        return documents.size() + " documents" + (hasNext() ? ", next after " + nextKey.toJson() : "");
+    }
+}
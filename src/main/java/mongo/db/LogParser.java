@@ -0,0 +1,255 @@
+package mongo.db;
+
+import java.security.InvalidParameterException;
+import java.time.*;
+
+
+/**
+ * Single pass parser of csv server logs.
+ * Scans every line once, recognizes ip, datetime, duration and url
+ * in any order and fills a typed {@link LogRecord}
+ */
+public class LogParser {
+    private static final int FIELDS_COUNT = 4;
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static final int MAX_EXACT_MANTISSA = 1 << 24;
+    private static final int MIN_DATETIME_LENGTH = "2000-1-1T0:0:0".length();
+
+    private final ZoneId zone;
+
+    public LogParser() {
+        this(ZoneId.systemDefault());
+    }
+    public LogParser(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * The method checks the count of values and if all required values present
+     * @param csvLog string in comma separated format
+     * @param record record to fill, its previous content is overwritten
+     * @return filled record
+     * @throws InvalidParameterException if csvLog hasn't got 4 values or contains incorrect value
+     */
+    public LogRecord parse(String csvLog, LogRecord record) throws InvalidParameterException {
+        int[] bounds = new int[FIELDS_COUNT + 1];
+        int fields = 1;
+        bounds[0] = -1;
+        for (int i = 0; i < csvLog.length(); i++) {
+            if (csvLog.charAt(i) == ',') {
+                if (fields == FIELDS_COUNT)
+                    throw new InvalidParameterException("not enough values");
+                bounds[fields++] = i;
+            }
+        }
+        if (fields != FIELDS_COUNT)
+            throw new InvalidParameterException("not enough values");
+        bounds[FIELDS_COUNT] = csvLog.length();
+
+        record.clear();
+        boolean hasIp = false, hasDuration = false, hasDateTime = false, hasUrl = false;
+        for (int i = 0; i < FIELDS_COUNT; i++) {
+            int start = bounds[i] + 1;
+            int end = bounds[i + 1];
+            while (start < end && csvLog.charAt(start) <= ' ')
+                start++;
+            while (end > start && csvLog.charAt(end - 1) <= ' ')
+                end--;
+
+            if (!hasIp && isIP(csvLog, start, end)) {
+                record.setIp(csvLog.substring(start, end));
+                hasIp = true;
+                continue;
+            }
+            if (!hasDuration && isDuration(csvLog, start, end)) {
+                record.setDuration(parseDuration(csvLog, start, end));
+                hasDuration = true;
+                continue;
+            }
+            if (!hasDateTime) {
+                long datetime = parseDateTime(csvLog, start, end);
+                if (datetime != Long.MIN_VALUE) {
+                    record.setDatetime(datetime);
+                    hasDateTime = true;
+                    continue;
+                }
+            }
+            if (!hasUrl && isUrl(csvLog, start, end)) {
+                record.setUrl(csvLog.substring(start, end));
+                hasUrl = true;
+                continue;
+            }
+            throw new InvalidParameterException("incorrect value");
+        }
+        return record;
+    }
+
+    /**
+     * Four dot separated octets, each of 1-3 digits not greater than 255
+     */
+    static boolean isIP(CharSequence s, int start, int end) {
+        int octets = 0;
+        int i = start;
+        while (i < end) {
+            int digits = 0, value = 0;
+            while (i < end && isDigit(s.charAt(i)) && digits < 4) {
+                value = value * 10 + (s.charAt(i) - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || value > 255)
+                return false;
+            octets++;
+            if (i == end)
+                break;
+            if (s.charAt(i) != '.' || octets == 4)
+                return false;
+            i++;
+            if (i == end)
+                return false;
+        }
+        return octets == 4;
+    }
+
+    /**
+     * Decimal number with optional sign, fraction and exponent
+     */
+    static boolean isDuration(CharSequence s, int start, int end) {
+        int i = start;
+        if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+            i++;
+        int digits = 0;
+        while (i < end && isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < end && s.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0)
+            return false;
+        if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+                i++;
+            int exponentDigits = 0;
+            while (i < end && isDigit(s.charAt(i))) {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0)
+                return false;
+        }
+        return i == end;
+    }
+
+    /**
+     * Plain decimals with up to 7 significant digits are computed exactly
+     * as one float division, others fall back to Float.parseFloat
+     */
+    static float parseDuration(String s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (s.charAt(i) == '+' || s.charAt(i) == '-')
+            negative = s.charAt(i++) == '-';
+        long mantissa = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            if (!isDigit(c) || mantissa >= MAX_EXACT_MANTISSA)
+                return Float.parseFloat(s.substring(start, end));
+            mantissa = mantissa * 10 + (c - '0');
+            if (fraction)
+                scale++;
+        }
+        if (mantissa > MAX_EXACT_MANTISSA || scale >= POWERS_OF_TEN.length)
+            return Float.parseFloat(s.substring(start, end));
+        float value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Accepts the same values as yyyy-M-dTH:m:s with years 2000-2017
+     * @return milliseconds since epoch or Long.MIN_VALUE if value isn't a datetime
+     */
+    long parseDateTime(CharSequence s, int start, int end) {
+        if (end - start < MIN_DATETIME_LENGTH)
+            return Long.MIN_VALUE;
+        for (int i = start; i < start + 4; i++)
+            if (!isDigit(s.charAt(i)))
+                return Long.MIN_VALUE;
+        int year = (s.charAt(start) - '0') * 1000 + (s.charAt(start + 1) - '0') * 100
+                + (s.charAt(start + 2) - '0') * 10 + (s.charAt(start + 3) - '0');
+        if (year < 2000 || year > 2017)
+            return Long.MIN_VALUE;
+
+        long month = parseDateTimeField(s, start + 4, end, '-', 1, 12);
+        long day = parseDateTimeField(s, nextIndex(month), end, '-', 1, 31);
+        long hours = parseDateTimeField(s, nextIndex(day), end, 'T', 0, 23);
+        long minutes = parseDateTimeField(s, nextIndex(hours), end, ':', 0, 59);
+        long seconds = parseDateTimeField(s, nextIndex(minutes), end, ':', 0, 59);
+        if (seconds < 0 || nextIndex(seconds) != end)
+            return Long.MIN_VALUE;
+        return toEpochMillis(year, fieldValue(month), fieldValue(day),
+                fieldValue(hours), fieldValue(minutes), fieldValue(seconds));
+    }
+
+    /**
+     * Parses separator followed by 1-2 digits
+     * @return field value and index after it packed into long or -1 if field is incorrect
+     */
+    private static long parseDateTimeField(CharSequence s, int start, int end, char separator, int min, int max) {
+        if (start < 0 || start >= end || s.charAt(start) != separator)
+            return -1;
+        int i = start + 1;
+        int value = 0;
+        while (i < end && isDigit(s.charAt(i)) && i - start <= 3) {
+            value = value * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        int digits = i - start - 1;
+        if (digits == 0 || digits > 2 || value < min || value > max)
+            return -1;
+        return ((long) value << 32) | i;
+    }
+    private static int nextIndex(long field) {
+        return field < 0 ? -1 : (int) field;
+    }
+    private static int fieldValue(long field) {
+        return (int) (field >>> 32);
+    }
+
+    long toEpochMillis(int year, int month, int day, int hours, int minutes, int seconds) {
+        LocalDateTime dateTime = LocalDate.of(year, month, 1).plusDays(day - 1).atTime(hours, minutes, seconds);
+        return dateTime.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Same values as ^(http://|https://|www.)?((((\S+/)+\S)(\S*))|(\S*\.\S*))$ :
+     * no whitespaces and either a dot or a slash that is neither first nor last
+     */
+    static boolean isUrl(CharSequence s, int start, int end) {
+        boolean matches = false;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r')
+                return false;
+            if (c == '.' || (c == '/' && i > start && i < end - 1))
+                matches = true;
+        }
+        return matches;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
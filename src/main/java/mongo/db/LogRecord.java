@@ -0,0 +1,83 @@
+package mongo.db;
+
+import org.bson.*;
+import java.util.*;
+
+
+/**
+ * Typed form of one server log line:
+ * ip, datetime, duration and url.
+ * Instances are mutable so one record can be refilled for every parsed line
+ */
+public class LogRecord {
+    private String ip;
+    private long datetime;
+    private float duration;
+    private String url;
+
+    public String getIp() {
+        return ip;
+    }
+    public void setIp(String ip) {
+        this.ip = ip;
+    }
+    /**
+     * @return datetime in milliseconds since epoch
+     */
+    public long getDatetime() {
+        return datetime;
+    }
+    public void setDatetime(long datetime) {
+        this.datetime = datetime;
+    }
+    public Date getDate() {
+        return new Date(datetime);
+    }
+    public float getDuration() {
+        return duration;
+    }
+    public void setDuration(float duration) {
+        this.duration = duration;
+    }
+    public String getUrl() {
+        return url;
+    }
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void clear() {
+        ip = null;
+        datetime = 0;
+        duration = 0;
+        url = null;
+    }
+
+    public Document toDocument() {
+        return new Document("ip", ip)
+                .append("datetime", getDate())
+                .append("duration", duration)
+                .append("url", url);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof LogRecord))
+            return false;
+        LogRecord record = (LogRecord) o;
+        return datetime == record.datetime
+                && Float.compare(duration, record.duration) == 0
+                && Objects.equals(ip, record.ip)
+                && Objects.equals(url, record.url);
+    }
+    @Override
+    public int hashCode() {
+        return Objects.hash(ip, datetime, duration, url);
+    }
+    @Override
+    public String toString() {
+        return ip + ", " + getDate() + ", " + duration + ", " + url;
+    }
+}
@@ -0,0 +1,91 @@
+package mongo.db;
+
+import org.bson.*;
+import org.bson.codecs.*;
+
+
+/**
+ * Writes records straight to BSON in the form of 'logs' documents:
+ * {ip: string, datetime: date, duration: double, url: string}.
+ * Decoding fills only fields present in the document, so projected results
+ * become records with the rest of fields empty. Other fields, e.g. _id, are skipped
+ */
+public class LogRecordCodec implements Codec<LogRecord> {
+    private final boolean contentIds;
+
+    public LogRecordCodec() {
+        this(false);
+    }
+    /**
+     * @param contentIds if true records are encoded with _id computed from their fields,
+     *                   so equal records get equal ids, otherwise the server adds ObjectId
+     */
+    public LogRecordCodec(boolean contentIds) {
+        this.contentIds = contentIds;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, LogRecord record, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if (contentIds) {
+            writer.writeName("_id");
+            writer.writeBinaryData(new BsonBinary(LogDeduplicator.id(record).getData()));
+        }
+        if (record.getIp() != null)
+            writer.writeString("ip", record.getIp());
+        writer.writeDateTime("datetime", record.getDatetime());
+        writer.writeDouble("duration", record.getDuration());
+        if (record.getUrl() != null)
+            writer.writeString("url", record.getUrl());
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public LogRecord decode(BsonReader reader, DecoderContext decoderContext) {
+        LogRecord record = new LogRecord();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+            switch (name) {
+                case "ip":
+                    record.setIp(reader.readString());
+                    break;
+                case "datetime":
+                    record.setDatetime(reader.readDateTime());
+                    break;
+                case "duration":
+                    record.setDuration(readNumber(reader));
+                    break;
+                case "url":
+                    record.setUrl(reader.readString());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return record;
+    }
+    private static float readNumber(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return (float) reader.readDouble();
+            default:
+                throw new BsonInvalidOperationException("duration must be a number, not "
+                        + reader.getCurrentBsonType());
+        }
+    }
+
+    @Override
+    public Class<LogRecord> getEncoderClass() {
+        return LogRecord.class;
+    }
+}
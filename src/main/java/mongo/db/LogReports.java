@@ -0,0 +1,67 @@
+package mongo.db;
+
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Accumulators.*;
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Sorts.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.util.*;
+
+
+/**
+ * Aggregation pipelines of reports over 'logs' collection.
+ * Results are returned inline as {_id: url or ip, value: ...} documents,
+ * limit 0 means all results
+ */
+final class LogReports {
+    private LogReports() {
+    }
+
+    static List<Bson> urlsCount(int limit) {
+        return countBy("url", null, limit);
+    }
+    static List<Bson> urlsCountByTime(Date dateTime1, Date dateTime2, int limit) {
+        return countByTime("url", dateTime1, dateTime2, limit);
+    }
+    /**
+     * @param field url or ip
+     */
+    static List<Bson> countByTime(String field, Date dateTime1, Date dateTime2, int limit) {
+        return countBy(field, and(gt("datetime", dateTime1), lt("datetime", dateTime2)), limit);
+    }
+    static List<Bson> urlsDuration(int limit) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(group("$url", sum("value", "$duration")));
+        pipeline.add(sort(orderBy(descending("value"), ascending("_id"))));
+        addLimit(pipeline, limit);
+        return pipeline;
+    }
+    static List<Bson> ipsDurationCount(int limit) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(group("$ip", sum("count", 1.0), sum("duration", "$duration")));
+        pipeline.add(sort(orderBy(descending("count", "duration"), ascending("_id"))));
+        addLimit(pipeline, limit);
+        pipeline.add(project(fields(computed("value",
+                new Document("count", "$count").append("duration", "$duration")))));
+        return pipeline;
+    }
+
+    private static List<Bson> countBy(String field, Bson filter, int limit) {
+        List<Bson> pipeline = new ArrayList<>();
+        if (filter != null)
+            pipeline.add(match(filter));
+        pipeline.add(group("$" + field, sum("value", 1.0)));
+        pipeline.add(sort(orderBy(descending("value"), ascending("_id"))));
+        addLimit(pipeline, limit);
+        return pipeline;
+    }
+    private static void addLimit(List<Bson> pipeline, int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        if (limit > 0)
+            pipeline.add(limit(limit));
+    }
+}
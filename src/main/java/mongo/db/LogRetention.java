@@ -0,0 +1,288 @@
+package mongo.db;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Accumulators.*;
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+/**
+ * Retention tiers of logs: raw logs expire by a TTL index on datetime, counts and durations
+ * per url and per ip are downsampled to hourly and daily aggregates which expire later.
+ * Downsampling runs periodically over hours completed since the last run and over the last
+ * hour once more for late logs, aggregates are replaced, so running it again doesn't change them.
+ * Hours whose raw logs could have expired already aren't downsampled again, so raw logs
+ * which expire while nothing downsamples them, or which are inserted older than raw retention,
+ * are missing from aggregates.
+ * Aggregates are {_id: {url or ip, time}, time, count, duration} documents,
+ * times are starts of hours and UTC days
+ */
+public class LogRetention implements AutoCloseable {
+    static final String URLS_HOURLY_COLLECTION = "urls_hourly";
+    static final String IPS_HOURLY_COLLECTION = "ips_hourly";
+    static final String URLS_DAILY_COLLECTION = "urls_daily";
+    static final String IPS_DAILY_COLLECTION = "ips_daily";
+    static final String STATE_COLLECTION = "retention";
+    private static final String TTL_INDEX = "datetime_ttl";
+    private static final String TIER_TTL_INDEX = "time_ttl";
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private static final Comparator<Document> BY_ID = Comparator.comparing(total -> total.getString("_id"),
+            Comparator.nullsFirst(Comparator.naturalOrder()));
+    private static final Comparator<Document> BY_COUNT = Comparator.comparing(LogRetention::count).reversed();
+    private static final Comparator<Document> BY_DURATION = Comparator.comparing(LogRetention::duration).reversed();
+
+    private final MongoCollection<Document> logs;
+    private final MongoCollection<Document> state;
+    private final Map<String, MongoCollection<Document>> hourly = new HashMap<>();
+    private final Map<String, MongoCollection<Document>> daily = new HashMap<>();
+    private final long rawRetention;
+    private final long hourlyRetention;
+    private final ScheduledExecutorService scheduler;
+    private volatile long downsampledUntil = Long.MIN_VALUE;
+
+    /**
+     * Downsamples logs stored so far before raw logs start to expire
+     * and then every hour, or every half of raw retention if it is shorter
+     * @param rawRetention time after datetime when raw logs expire
+     * @param hourlyRetention time after their hour when hourly aggregates expire
+     * @param dailyRetention time after their day when daily aggregates expire
+     */
+    LogRetention(MongoDatabase database, MongoCollection<Document> logs,
+                 long rawRetention, long hourlyRetention, long dailyRetention, TimeUnit unit) {
+        this.rawRetention = unit.toMillis(rawRetention);
+        this.hourlyRetention = unit.toMillis(hourlyRetention);
+        if (this.rawRetention < 2 * HOUR)
+            throw new IllegalArgumentException("raw retention must be at least 2 hours");
+        if (this.hourlyRetention < this.rawRetention + DAY)
+            throw new IllegalArgumentException("hourly retention must be a day longer than raw retention");
+        if (unit.toMillis(dailyRetention) < this.hourlyRetention)
+            throw new IllegalArgumentException("daily retention must not be shorter than hourly retention");
+        this.logs = logs;
+        state = database.getCollection(STATE_COLLECTION);
+        hourly.put("url", database.getCollection(URLS_HOURLY_COLLECTION));
+        hourly.put("ip", database.getCollection(IPS_HOURLY_COLLECTION));
+        daily.put("url", database.getCollection(URLS_DAILY_COLLECTION));
+        daily.put("ip", database.getCollection(IPS_DAILY_COLLECTION));
+        for (String field : Arrays.asList("url", "ip")) {
+            ensureTtlIndex(hourly.get(field), "time", TIER_TTL_INDEX, this.hourlyRetention);
+            ensureTtlIndex(daily.get(field), "time", TIER_TTL_INDEX, unit.toMillis(dailyRetention));
+        }
+        Document saved = state.find(eq("_id", "downsampled")).first();
+        if (saved != null)
+            downsampledUntil = saved.getDate("until").getTime();
+
+        downsample();
+        ensureTtlIndex(logs, "datetime", TTL_INDEX, this.rawRetention);
+        long interval = Math.min(HOUR, this.rawRetention / 2);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "log-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                downsample();
+            }
+            catch (RuntimeException e) {
+                System.err.println("Logs weren't downsampled: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * TTL index is recreated if it expires after another time
+     */
+    private static void ensureTtlIndex(MongoCollection<Document> collection, String field, String name, long expireAfter) {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(expireAfter);
+        for (Document index : collection.listIndexes()) {
+            if (!name.equals(index.getString("name")))
+                continue;
+            Number current = (Number) index.get("expireAfterSeconds");
+            if (current != null && current.longValue() == seconds)
+                return;
+            collection.dropIndex(name);
+        }
+        collection.createIndex(Indexes.ascending(field), new IndexOptions().name(name).expireAfter(seconds, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return time until which logs are downsampled, null before the first run
+     */
+    public Date getDownsampledUntil() {
+        long until = downsampledUntil;
+        return until == Long.MIN_VALUE ? null : new Date(until);
+    }
+
+    /**
+     * Aggregates raw logs of completed hours into hourly tiers and hourly aggregates of their days into daily tiers
+     * @return time until which logs are downsampled
+     */
+    public synchronized Date downsample() {
+        long now = System.currentTimeMillis();
+        long until = floor(now, HOUR);
+        Long from = null;
+        if (downsampledUntil != Long.MIN_VALUE)
+            from = Math.max(downsampledUntil - HOUR, floor(now - rawRetention, HOUR) + HOUR);
+        if (from == null || from < until) {
+            Bson hours = from == null ? lt("datetime", new Date(until))
+                    : and(gte("datetime", new Date(from)), lt("datetime", new Date(until)));
+            Bson days = from == null ? lt("time", new Date(until))
+                    : and(gte("time", new Date(floor(from, DAY))), lt("time", new Date(until)));
+            for (String field : Arrays.asList("url", "ip")) {
+                replace(hourly.get(field), logs.aggregate(Arrays.asList(
+                        match(hours),
+                        group(new Document(field, "$" + field).append("time", floorExpression("$datetime", HOUR)),
+                                sum("count", 1L), sum("duration", "$duration")))).allowDiskUse(true));
+                replace(daily.get(field), hourly.get(field).aggregate(Arrays.asList(
+                        match(days),
+                        group(new Document(field, "$_id." + field).append("time", floorExpression("$time", DAY)),
+                                sum("count", "$count"), sum("duration", "$duration")))).allowDiskUse(true));
+            }
+        }
+        state.replaceOne(eq("_id", "downsampled"), new Document("_id", "downsampled").append("until", new Date(until)),
+                new UpdateOptions().upsert(true));
+        downsampledUntil = until;
+        return new Date(until);
+    }
+    private static Document floorExpression(String field, long period) {
+        return new Document("$subtract", Arrays.asList(field, new Document("$mod", Arrays.asList(
+                new Document("$subtract", Arrays.asList(field, new Date(0))), period))));
+    }
+    private static void replace(MongoCollection<Document> tier, AggregateIterable<Document> aggregates) {
+        List<WriteModel<Document>> writes = new ArrayList<>(WRITE_BATCH_SIZE);
+        for (Document aggregate : aggregates) {
+            aggregate.append("time", ((Document) aggregate.get("_id")).getDate("time"));
+            writes.add(new ReplaceOneModel<>(eq("_id", aggregate.get("_id")), aggregate, new UpdateOptions().upsert(true)));
+            if (writes.size() == WRITE_BATCH_SIZE) {
+                tier.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                writes.clear();
+            }
+        }
+        if (!writes.isEmpty())
+            tier.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+    private static long floor(long time, long period) {
+        return time - Math.floorMod(time, period);
+    }
+
+    /**
+     * Counts of logs by url or ip in (dateTime1, dateTime2) from the tiers which still cover dateTime1:
+     * hourly or daily aggregates before {@link #getDownsampledUntil()} and raw logs after.
+     * Aggregates start from the hour or day of dateTime1, so logs before dateTime1 in that hour or day
+     * are counted. The hour or day of dateTime2 is read from raw logs if they haven't expired,
+     * otherwise its aggregates are counted whole, including logs after dateTime2
+     * @param field url or ip
+     * @param raw counts of raw logs in a window without limit
+     * @return null if raw logs of the window haven't expired yet
+     */
+    MongoIterable<Document> countByTime(String field, Date dateTime1, Date dateTime2, int limit,
+                                        BiFunction<Date, Date, MongoIterable<Document>> raw) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        long now = System.currentTimeMillis();
+        long until = downsampledUntil;
+        if (until == Long.MIN_VALUE || dateTime1.getTime() >= now - rawRetention)
+            return null;
+        boolean hours = dateTime1.getTime() >= now - hourlyRetention;
+        MongoCollection<Document> tier = (hours ? hourly : daily).get(field);
+        long period = hours ? HOUR : DAY;
+        long start = floor(dateTime1.getTime(), period);
+        long tiersEnd = Math.min(dateTime2.getTime(), until);
+        long end = floor(tiersEnd, period) >= now - rawRetention ? floor(tiersEnd, period) : tiersEnd;
+        return new LazyIterable<>(() -> {
+            List<List<Document>> parts = new ArrayList<>();
+            if (start < end)
+                parts.add(tier.aggregate(Arrays.asList(
+                        match(and(gte("time", new Date(start)), lt("time", new Date(end)))),
+                        group("$_id." + field, sum("value", "$count")))).allowDiskUse(true).into(new ArrayList<>()));
+            if (dateTime2.getTime() > end)
+                parts.add(raw.apply(dateTime1.getTime() >= end ? dateTime1 : new Date(end - 1), dateTime2)
+                        .into(new ArrayList<>()));
+            return TimePartitions.sumValues(parts, limit);
+        });
+    }
+
+    /**
+     * All-time reports like {@link LogReports} from daily aggregates before {@link #getDownsampledUntil()}
+     * and raw logs after, so they cover logs downsampled within daily retention
+     */
+    MongoIterable<Document> urlsCount(int limit) {
+        return totals("url", limit, BY_COUNT.thenComparing(BY_ID),
+                total -> new Document("_id", total.get("_id")).append("value", count(total)));
+    }
+    MongoIterable<Document> urlsDuration(int limit) {
+        return totals("url", limit, BY_DURATION.thenComparing(BY_ID),
+                total -> new Document("_id", total.get("_id")).append("value", duration(total)));
+    }
+    MongoIterable<Document> ipsDurationCount(int limit) {
+        return totals("ip", limit, BY_COUNT.thenComparing(BY_DURATION).thenComparing(BY_ID),
+                total -> new Document("_id", total.get("_id")).append("value",
+                        new Document("count", count(total)).append("duration", duration(total))));
+    }
+    /**
+     * @param order order of {_id, count, duration} totals
+     * @param result report document of a total
+     */
+    private MongoIterable<Document> totals(String field, int limit, Comparator<Document> order,
+                                           Function<Document, Document> result) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        long until = downsampledUntil;
+        return new LazyIterable<>(() -> {
+            Map<Object, Document> totals = new HashMap<>();
+            addTotals(totals, daily.get(field).aggregate(Collections.singletonList(
+                    group("$_id." + field, sum("count", "$count"), sum("duration", "$duration")))).allowDiskUse(true));
+            addTotals(totals, logs.aggregate(Arrays.asList(
+                    match(gte("datetime", new Date(until))),
+                    group("$" + field, sum("count", 1L), sum("duration", "$duration")))).allowDiskUse(true));
+            List<Document> sorted = new ArrayList<>(totals.values());
+            sorted.sort(order);
+            int count = limit == 0 ? sorted.size() : Math.min(limit, sorted.size());
+            List<Document> results = new ArrayList<>(count);
+            for (Document total : sorted.subList(0, count))
+                results.add(result.apply(total));
+            return results;
+        });
+    }
+    private static void addTotals(Map<Object, Document> totals, Iterable<Document> documents) {
+        for (Document document : documents)
+            totals.merge(document.get("_id"), document, (total, added) -> total
+                    .append("count", count(total) + count(added))
+                    .append("duration", duration(total) + duration(added)));
+    }
+    private static double count(Document total) {
+        return ((Number) total.get("count")).doubleValue();
+    }
+    private static double duration(Document total) {
+        Number duration = (Number) total.get("duration");
+        return duration == null ? 0 : duration.doubleValue();
+    }
+
+    /**
+     * Stops downsampling, raw logs still expire
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+    /**
+     * Stops expiration of raw logs, aggregates are kept and still expire
+     */
+    void dropTtlIndex() {
+        try {
+            logs.dropIndex(TTL_INDEX);
+        }
+        catch (MongoCommandException e) {
+            System.err.println("TTL index wasn't dropped: " + e.getErrorMessage());
+        }
+    }
+}
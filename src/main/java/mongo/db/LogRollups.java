@@ -0,0 +1,157 @@
+package mongo.db;
+
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Accumulators.*;
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Sorts.*;
+import static com.mongodb.client.model.Updates.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+
+/**
+ * Summary counters of logs per url, per ip and optionally per url and hour.
+ * Counters are incremented by upserts for every inserted batch,
+ * so reports read one document per url or ip instead of all logs.
+ * Reports have the same {_id, value} form as reports over 'logs'
+ */
+public class LogRollups {
+    static final String URLS_COLLECTION = "urls_rollup";
+    static final String IPS_COLLECTION = "ips_rollup";
+    static final String URLS_HOURLY_COLLECTION = "urls_rollup_hourly";
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final MongoCollection<Document> urls;
+    private final MongoCollection<Document> ips;
+    private final MongoCollection<Document> urlsHourly;
+
+    /**
+     * @param hourlyBuckets if true url counters are also kept per hour
+     */
+    public LogRollups(MongoDatabase database, boolean hourlyBuckets) {
+        urls = database.getCollection(URLS_COLLECTION);
+        ips = database.getCollection(IPS_COLLECTION);
+        urlsHourly = hourlyBuckets ? database.getCollection(URLS_HOURLY_COLLECTION) : null;
+        urls.createIndex(Indexes.descending("count"));
+        urls.createIndex(Indexes.descending("duration"));
+        ips.createIndex(Indexes.descending("count", "duration"));
+        if (urlsHourly != null)
+            urlsHourly.createIndex(Indexes.ascending("_id.hour"));
+    }
+
+    public boolean hasHourlyBuckets() {
+        return urlsHourly != null;
+    }
+
+    /**
+     * Increments counters by inserted logs, one unordered bulk write per rollup collection
+     * @param records inserted logs
+     */
+    void add(List<LogRecord> records) {
+        Map<Object, double[]> urlTotals = new HashMap<>();
+        Map<Object, double[]> ipTotals = new HashMap<>();
+        Map<Object, double[]> hourlyTotals = new HashMap<>();
+        for (LogRecord record : records) {
+            double duration = record.getDuration();
+            addTotal(urlTotals, record.getUrl(), duration);
+            addTotal(ipTotals, record.getIp(), duration);
+            if (urlsHourly != null)
+                addTotal(hourlyTotals, hourKey(record.getUrl(), record.getDatetime()), duration);
+        }
+        increment(urls, urlTotals);
+        increment(ips, ipTotals);
+        if (urlsHourly != null)
+            increment(urlsHourly, hourlyTotals);
+    }
+    private static void addTotal(Map<Object, double[]> totals, Object key, double duration) {
+        double[] total = totals.computeIfAbsent(key, k -> new double[2]);
+        total[0]++;
+        total[1] += duration;
+    }
+    private static void increment(MongoCollection<Document> rollup, Map<Object, double[]> totals) {
+        if (totals.isEmpty())
+            return;
+        List<WriteModel<Document>> updates = new ArrayList<>(totals.size());
+        for (Map.Entry<Object, double[]> total : totals.entrySet())
+            updates.add(new UpdateOneModel<>(eq("_id", total.getKey()),
+                    combine(inc("count", (long) total.getValue()[0]), inc("duration", total.getValue()[1])),
+                    new UpdateOptions().upsert(true)));
+        rollup.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    }
+    private static Document hourKey(String url, long dateTime) {
+        return new Document("url", url).append("hour", new Date(dateTime - Math.floorMod(dateTime, HOUR)));
+    }
+
+    /**
+     * Recomputes all counters from stored logs,
+     * e.g. after a failure between insertion of logs and counters update
+     * @param logs runs a pipeline over documents of 'logs' form
+     */
+    void rebuild(Function<List<Bson>, AggregateIterable<Document>> logs) {
+        logs.apply(Arrays.asList(
+                group("$url", sum("count", 1L), sum("duration", "$duration")),
+                out(URLS_COLLECTION))).allowDiskUse(true).toCollection();
+        logs.apply(Arrays.asList(
+                group("$ip", sum("count", 1L), sum("duration", "$duration")),
+                out(IPS_COLLECTION))).allowDiskUse(true).toCollection();
+        if (urlsHourly != null) {
+            Document hour = new Document("$subtract", Arrays.asList("$datetime",
+                    new Document("$mod", Arrays.asList(
+                            new Document("$subtract", Arrays.asList("$datetime", new Date(0))), HOUR))));
+            logs.apply(Arrays.asList(
+                    group(new Document("url", "$url").append("hour", hour),
+                            sum("count", 1L), sum("duration", "$duration")),
+                    out(URLS_HOURLY_COLLECTION))).allowDiskUse(true).toCollection();
+        }
+    }
+
+    //region Reports
+    public AggregateIterable<Document> findUrlsCount(int limit) {
+        return urls.aggregate(pipeline(orderBy(descending("count"), ascending("_id")), limit, countValue()));
+    }
+    public AggregateIterable<Document> findUrlsDuration(int limit) {
+        return urls.aggregate(pipeline(orderBy(descending("duration"), ascending("_id")), limit, "$duration"));
+    }
+    public AggregateIterable<Document> findIdsDurationCount(int limit) {
+        return ips.aggregate(pipeline(orderBy(descending("count", "duration"), ascending("_id")), limit,
+                new Document("count", countValue()).append("duration", "$duration")));
+    }
+    /**
+     * Counts visits of urls in hours which start in [dateTime1, dateTime2),
+     * dateTime1 is rounded down to the hour
+     */
+    public AggregateIterable<Document> findUrlsCountByHour(Date dateTime1, Date dateTime2, int limit) {
+        if (urlsHourly == null)
+            throw new IllegalStateException("hourly buckets are disabled");
+        Date hour = new Date(dateTime1.getTime() - Math.floorMod(dateTime1.getTime(), HOUR));
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(match(and(gte("_id.hour", hour), lt("_id.hour", dateTime2))));
+        pipeline.add(group("$_id.url", sum("count", "$count")));
+        pipeline.addAll(pipeline(orderBy(descending("count"), ascending("_id")), limit, countValue()));
+        return urlsHourly.aggregate(pipeline);
+    }
+
+    private static List<Bson> pipeline(Bson sort, int limit, Object value) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(sort(sort));
+        if (limit > 0)
+            pipeline.add(limit(limit));
+        pipeline.add(project(fields(computed("value", value))));
+        return pipeline;
+    }
+    /**
+     * Counters are stored as longs, reports return doubles like the reports over 'logs'
+     */
+    private static Document countValue() {
+        return new Document("$add", Arrays.asList("$count", 0.0));
+    }
+    //endregion
+}
@@ -0,0 +1,257 @@
+package mongo.db;
+
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Approximate statistics of inserted logs kept in memory:
+ * distinct ips per url and in total (HyperLogLog), top urls and ips in total and per hour
+ * of log datetime (Space-Saving) and quantiles of durations.
+ * Queries don't touch the database. Sketches are saved to 'sketches' and 'sketches_urls'
+ * collections periodically and on close, and are loaded back when created.
+ * Distinct counts are updated without locks, every other sketch has its own lock,
+ * so inserting threads don't wait for each other on one monitor
+ */
+public class LogSketches implements AutoCloseable {
+    static final String COLLECTION = "sketches";
+    static final String URLS_COLLECTION = "sketches_urls";
+    /**
+     * 1KB per url, standard error of distinct counts is about 3%
+     */
+    private static final int PRECISION = 10;
+    private static final int TOTAL_PRECISION = 14;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final MongoCollection<Document> sketches;
+    private final MongoCollection<Document> urlSketches;
+    private final int topCapacity;
+    private final int hours;
+    private final Map<String, HyperLogLog> ipsByUrl = new ConcurrentHashMap<>();
+    private final Set<String> changedUrls = ConcurrentHashMap.newKeySet();
+    private final HyperLogLog ips = new HyperLogLog(TOTAL_PRECISION);
+    private final SpaceSaving topUrls;
+    private final SpaceSaving topIps;
+    private final NavigableMap<Long, SpaceSaving> hourlyTopUrls = new TreeMap<>();
+    private final QuantileSketch durations = new QuantileSketch();
+    private final ScheduledExecutorService saver;
+
+    /**
+     * @param topCapacity count of urls and ips tracked by top summaries,
+     *                    top n results are reliable for n much less than capacity
+     * @param hours count of the latest hours of log datetime with own top urls
+     * @param saveInterval period of saving to the database, 0 saves only on close
+     */
+    public LogSketches(MongoDatabase database, int topCapacity, int hours, long saveInterval, TimeUnit unit) {
+        if (hours < 0)
+            throw new IllegalArgumentException("count of hours must not be negative");
+        sketches = database.getCollection(COLLECTION);
+        urlSketches = database.getCollection(URLS_COLLECTION);
+        this.topCapacity = topCapacity;
+        this.hours = hours;
+        topUrls = new SpaceSaving(topCapacity);
+        topIps = new SpaceSaving(topCapacity);
+        load();
+        if (saveInterval > 0) {
+            saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "log-sketches-saver");
+                thread.setDaemon(true);
+                return thread;
+            });
+            saver.scheduleWithFixedDelay(() -> {
+                try {
+                    save();
+                }
+                catch (RuntimeException e) {
+                    System.err.println("Sketches weren't saved: " + e.getMessage());
+                }
+            }, saveInterval, saveInterval, unit);
+        }
+        else
+            saver = null;
+    }
+
+    /**
+     * Adds inserted logs, counts are aggregated by batch before top summaries are updated
+     */
+    void add(List<LogRecord> records) {
+        Map<String, Long> urlCounts = new HashMap<>();
+        Map<String, Long> ipCounts = new HashMap<>();
+        Map<Long, Map<String, Long>> hourlyUrlCounts = new HashMap<>();
+        for (LogRecord record : records) {
+            ipsByUrl.computeIfAbsent(record.getUrl(), url -> new HyperLogLog(PRECISION)).add(record.getIp());
+            changedUrls.add(record.getUrl());
+            ips.add(record.getIp());
+            urlCounts.merge(record.getUrl(), 1L, Long::sum);
+            ipCounts.merge(record.getIp(), 1L, Long::sum);
+            if (hours > 0) {
+                long hour = record.getDatetime() - Math.floorMod(record.getDatetime(), HOUR);
+                hourlyUrlCounts.computeIfAbsent(hour, h -> new HashMap<>()).merge(record.getUrl(), 1L, Long::sum);
+            }
+        }
+        synchronized (durations) {
+            for (LogRecord record : records)
+                durations.add(record.getDuration());
+        }
+        synchronized (topUrls) {
+            urlCounts.forEach(topUrls::add);
+        }
+        synchronized (topIps) {
+            ipCounts.forEach(topIps::add);
+        }
+        if (hourlyUrlCounts.isEmpty())
+            return;
+        synchronized (hourlyTopUrls) {
+            for (Map.Entry<Long, Map<String, Long>> hourCounts : hourlyUrlCounts.entrySet()) {
+                if (hourlyTopUrls.size() == hours && hourCounts.getKey() < hourlyTopUrls.firstKey())
+                    continue;
+                SpaceSaving hourTop = hourlyTopUrls.computeIfAbsent(hourCounts.getKey(),
+                        h -> new SpaceSaving(topCapacity));
+                hourCounts.getValue().forEach(hourTop::add);
+                while (hourlyTopUrls.size() > hours)
+                    hourlyTopUrls.pollFirstEntry();
+            }
+        }
+    }
+
+    //region Queries
+    public long countDistinctIps() {
+        return ips.estimate();
+    }
+    public long countDistinctIps(String url) {
+        HyperLogLog urlIps = ipsByUrl.get(url);
+        return urlIps == null ? 0 : urlIps.estimate();
+    }
+    /**
+     * Top methods return {_id, value, error} documents ordered like reports,
+     * value is the estimated count of logs and is greater than the real count at most by error
+     * @param limit count of results, 0 means all tracked
+     */
+    public List<Document> findTopUrls(int limit) {
+        synchronized (topUrls) {
+            return topUrls.top(limit);
+        }
+    }
+    public List<Document> findTopIps(int limit) {
+        synchronized (topIps) {
+            return topIps.top(limit);
+        }
+    }
+    /**
+     * Top urls of logs in hours starting in [dateTime1, dateTime2), dateTime1 is rounded down to the hour.
+     * Only the latest hours are kept, older hours are missing from results
+     */
+    public List<Document> findTopUrls(Date dateTime1, Date dateTime2, int limit) {
+        long hour = dateTime1.getTime() - Math.floorMod(dateTime1.getTime(), HOUR);
+        synchronized (hourlyTopUrls) {
+            Map<Long, SpaceSaving> range = hourlyTopUrls.subMap(hour, true, dateTime2.getTime(), false);
+            if (range.size() == 1)
+                return range.values().iterator().next().top(limit);
+            SpaceSaving merged = new SpaceSaving(topCapacity);
+            for (SpaceSaving hourTop : range.values())
+                merged.merge(hourTop);
+            return merged.top(limit);
+        }
+    }
+    /**
+     * @param quantile from 0 to 1, e.g. 0.5 for median
+     * @return duration within 1% of the real quantile, NaN if no logs were added
+     */
+    public double findDurationQuantile(double quantile) {
+        synchronized (durations) {
+            return durations.quantile(quantile);
+        }
+    }
+    //endregion
+
+    //region Persistence
+    /**
+     * Saves the sketches, distinct ips are saved only for urls changed since the last save
+     */
+    public void save() {
+        List<WriteModel<Document>> urlWrites = new ArrayList<>();
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        Long firstHour;
+        // a url changed meanwhile is marked again and saved next time
+        for (Iterator<String> urls = changedUrls.iterator(); urls.hasNext(); ) {
+            String url = urls.next();
+            urls.remove();
+            urlWrites.add(replacement(new Document("_id", url)
+                    .append("ips", new Binary(ipsByUrl.get(url).toBytes()))));
+        }
+        writes.add(replacement(new Document("_id", "ips").append("registers", new Binary(ips.toBytes()))));
+        synchronized (topUrls) {
+            writes.add(replacement(new Document("_id", "top_urls").append("items", topUrls.toDocuments())));
+        }
+        synchronized (topIps) {
+            writes.add(replacement(new Document("_id", "top_ips").append("items", topIps.toDocuments())));
+        }
+        synchronized (durations) {
+            writes.add(replacement(new Document("_id", "durations").append("sketch", durations.toDocument())));
+        }
+        synchronized (hourlyTopUrls) {
+            for (Map.Entry<Long, SpaceSaving> hourTop : hourlyTopUrls.entrySet())
+                writes.add(replacement(new Document("_id", hourId(hourTop.getKey()))
+                        .append("items", hourTop.getValue().toDocuments())));
+            firstHour = hourlyTopUrls.isEmpty() ? null : hourlyTopUrls.firstKey();
+        }
+        if (!urlWrites.isEmpty())
+            urlSketches.bulkWrite(urlWrites, new BulkWriteOptions().ordered(false));
+        sketches.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        Bson oldHours = firstHour == null ? exists("_id.hour") : lt("_id.hour", new Date(firstHour));
+        sketches.deleteMany(oldHours);
+    }
+    private static ReplaceOneModel<Document> replacement(Document document) {
+        return new ReplaceOneModel<>(eq("_id", document.get("_id")), document, new UpdateOptions().upsert(true));
+    }
+    private static Document hourId(long hour) {
+        return new Document("sketch", "top_urls").append("hour", new Date(hour));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        for (Document document : urlSketches.find())
+            ipsByUrl.put(document.getString("_id"), new HyperLogLog(document.get("ips", Binary.class).getData()));
+        for (Document document : sketches.find()) {
+            Object id = document.get("_id");
+            if (id instanceof Document) {
+                long hour = ((Document) id).getDate("hour").getTime();
+                hourlyTopUrls.put(hour, SpaceSaving.fromDocuments(topCapacity, (List<Document>) document.get("items")));
+                continue;
+            }
+            switch ((String) id) {
+                case "ips":
+                    ips.merge(document.get("registers", Binary.class).getData());
+                    break;
+                case "top_urls":
+                    topUrls.merge(SpaceSaving.fromDocuments(topCapacity, (List<Document>) document.get("items")));
+                    break;
+                case "top_ips":
+                    topIps.merge(SpaceSaving.fromDocuments(topCapacity, (List<Document>) document.get("items")));
+                    break;
+                case "durations":
+                    durations.merge(QuantileSketch.fromDocument((Document) document.get("sketch")));
+                    break;
+            }
+        }
+        while (hourlyTopUrls.size() > hours)
+            hourlyTopUrls.pollFirstEntry();
+    }
+
+    /**
+     * Stops periodic saving and saves the sketches
+     */
+    @Override
+    public void close() {
+        if (saver != null)
+            saver.shutdownNow();
+        save();
+    }
+    //endregion
+}
@@ -0,0 +1,457 @@
+package mongo.db;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.InvalidParameterException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Write-behind buffer of valid logs in a local directory.
+ * Records are appended to memory mapped segment files and acknowledged at once,
+ * a drainer thread inserts them into the database by batches of the handler batch size,
+ * retrying while the database is unavailable, and saves the drained position to 'checkpoint'.
+ * Segments survive a crash of the process, logs after the checkpoint are inserted again
+ * when the spool is opened, so a log may be inserted twice but is never lost.
+ * Drained segments are deleted
+ */
+public class LogSpool implements AutoCloseable {
+    static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+    /**
+     * Record is length and crc of payload followed by payload, zero length marks the end of a segment
+     */
+    private static final int HEADER_SIZE = 8;
+    private static final long MIN_RETRY_DELAY = 100;
+    private static final long MAX_RETRY_DELAY = 10_000;
+
+    private final MongoLogHandler handler;
+    private final Path directory;
+    private final int segmentSize;
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private Segment head;
+    /**
+     * Full segments not written to the disk yet, the drainer forces them outside the lock
+     */
+    private final List<Segment> finished = new ArrayList<>();
+    private long pendingCount;
+    private boolean closed;
+    private volatile long drainedCount;
+    private volatile long rejectedCount;
+    private volatile String lastError;
+    /**
+     * Owned by the drainer
+     */
+    private long drainSegment;
+    private int drainOffset;
+    private final Thread drainer;
+
+    /**
+     * Opens the spool and replays logs spooled after the checkpoint
+     * @param segmentSize size of segment files in bytes
+     * @throws IOException if the directory or segments can't be read
+     */
+    LogSpool(MongoLogHandler handler, Path directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("segment size must be greater than " + HEADER_SIZE);
+        this.handler = handler;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        recover();
+        drainer = new Thread(this::drain, "log-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    //region Append
+    /**
+     * @throws InvalidParameterException if the log isn't valid
+     * @throws IOException if a new segment can't be created
+     */
+    public void append(String csvLog) throws InvalidParameterException, IOException {
+        append(handler.parse(csvLog, new LogRecord(), handler.getMetrics()));
+    }
+    void append(LogRecord record) throws IOException {
+        byte[] payload = encode(record);
+        if (payload.length > segmentSize - HEADER_SIZE)
+            throw new InvalidParameterException("log is longer than segment");
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("spool is closed");
+            if (head.limit + HEADER_SIZE + payload.length > head.buffer.capacity())
+                head = createSegment(head.id + 1);
+            ByteBuffer buffer = head.buffer.duplicate();
+            buffer.position(head.limit);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            head.limit = buffer.position();
+            if (++pendingCount == 1)
+                notifyAll();
+        }
+    }
+
+    private static byte[] encode(LogRecord record) {
+        byte[] ip = record.getIp().getBytes(StandardCharsets.UTF_8);
+        byte[] url = record.getUrl().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + ip.length + 8 + 4 + url.length)
+                .putShort((short) ip.length).put(ip)
+                .putLong(record.getDatetime())
+                .putFloat(record.getDuration())
+                .put(url)
+                .array();
+    }
+    /**
+     * @return offset of the next record
+     */
+    private static int decode(ByteBuffer buffer, int offset, LogRecord record) {
+        int length = buffer.getInt(offset);
+        buffer.position(offset + HEADER_SIZE);
+        byte[] ip = new byte[buffer.getShort()];
+        buffer.get(ip);
+        record.setIp(new String(ip, StandardCharsets.UTF_8));
+        record.setDatetime(buffer.getLong());
+        record.setDuration(buffer.getFloat());
+        byte[] url = new byte[offset + HEADER_SIZE + length - buffer.position()];
+        buffer.get(url);
+        record.setUrl(new String(url, StandardCharsets.UTF_8));
+        return offset + HEADER_SIZE + length;
+    }
+    //endregion
+
+    //region Drain
+    private void drain() {
+        int batchSize = handler.getBatchSize();
+        List<LogRecord> batch = new ArrayList<>(batchSize);
+        long[] lineNumbers = new long[batchSize];
+        List<Segment> drained = new ArrayList<>();
+        long sequence = 0;
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pendingCount == 0 && !closed)
+                        wait();
+                    if (closed)
+                        return;
+                }
+                forceFinished();
+                batch.clear();
+                drained.clear();
+                int offset = read(batch, batchSize, drained);
+                for (int i = 0; i < batch.size(); i++)
+                    lineNumbers[i] = ++sequence;
+                if (!batch.isEmpty() && !insert(batch, lineNumbers))
+                    return;
+
+                saveCheckpoint(drainSegment, offset);
+                drainOffset = offset;
+                synchronized (this) {
+                    pendingCount -= batch.size();
+                    for (Segment passed : drained)
+                        segments.remove(passed.id);
+                    finished.removeAll(drained);
+                    notifyAll();
+                }
+                for (Segment passed : drained)
+                    passed.delete();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            lastError = e.toString();
+            System.err.println("Spool drainer stopped: " + e);
+        }
+    }
+
+    /**
+     * Decodes up to batchSize records after the drained position,
+     * moves drainSegment to the segment of the last record
+     * @param drained segments passed completely
+     * @return offset after the last record
+     */
+    private int read(List<LogRecord> batch, int batchSize, List<Segment> drained) {
+        int offset = drainOffset;
+        while (batch.size() < batchSize) {
+            Segment segment;
+            int limit;
+            Long next;
+            synchronized (this) {
+                segment = segments.get(drainSegment);
+                limit = segment.limit;
+                next = segment == head ? null : segments.higherKey(drainSegment);
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (offset < limit && batch.size() < batchSize) {
+                LogRecord record = new LogRecord();
+                offset = decode(buffer, offset, record);
+                batch.add(record);
+            }
+            if (offset < limit || next == null)
+                break;
+            drained.add(segment);
+            drainSegment = next;
+            offset = 0;
+        }
+        return offset;
+    }
+
+    /**
+     * Retries the batch with growing delays until it's inserted
+     * @return false if the spool was closed before
+     */
+    private boolean insert(List<LogRecord> batch, long[] lineNumbers) throws InterruptedException {
+        long delay = MIN_RETRY_DELAY;
+        while (true) {
+            IngestResult result = new IngestResult();
+            try {
+                handler.insertBatch(batch, lineNumbers, result);
+                drainedCount += result.getInsertedCount();
+                rejectedCount += result.getRejectedCount();
+                lastError = null;
+                return true;
+            }
+            catch (RuntimeException e) {
+                if (lastError == null)
+                    System.err.println("Spooled logs weren't inserted, retrying: " + e.getMessage());
+                lastError = e.toString();
+            }
+            forceFinished();
+            synchronized (this) {
+                if (!closed)
+                    wait(delay);
+                if (closed)
+                    return false;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+    //endregion
+
+    //region Recovery
+    private void recover() throws IOException {
+        long checkpointSegment = -1;
+        int checkpointOffset = 0;
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            ByteBuffer position = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            checkpointSegment = position.getLong();
+            checkpointOffset = position.getInt();
+        }
+
+        long lastId = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                lastId = Math.max(lastId, id);
+                if (id < checkpointSegment)
+                    Files.delete(file);
+                else
+                    segments.put(id, openSegment(id, file));
+            }
+        }
+        for (Iterator<Segment> iterator = segments.values().iterator(); iterator.hasNext(); ) {
+            Segment segment = iterator.next();
+            long count = countRecords(segment, segment.id == checkpointSegment ? checkpointOffset : 0);
+            if (count == 0) {
+                iterator.remove();
+                segment.delete();
+            }
+            pendingCount += count;
+        }
+
+        head = createSegment(lastId + 1);
+        drainSegment = segments.firstKey();
+        drainOffset = drainSegment == checkpointSegment ? checkpointOffset : 0;
+    }
+
+    /**
+     * Finds the end of records with valid crc, a record torn by a crash ends the segment
+     */
+    private static int countRecords(Segment segment, int from) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        int count = 0;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.capacity() - offset - HEADER_SIZE)
+                break;
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4))
+                break;
+            if (offset >= from)
+                count++;
+            offset += HEADER_SIZE + length;
+        }
+        segment.limit = offset;
+        return count;
+    }
+
+    private void saveCheckpoint(long segment, int offset) throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer position = ByteBuffer.allocate(12).putLong(segment).putInt(offset);
+            position.flip();
+            while (position.hasRemaining())
+                channel.write(position);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    //endregion
+
+    //region Segments
+    private Segment createSegment(long id) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        if (head != null)
+            finished.add(head);
+        segments.put(id, segment);
+        return segment;
+    }
+    /**
+     * Writes full segments to the disk without holding the lock, so appending doesn't wait for the disk
+     */
+    private void forceFinished() {
+        List<Segment> forced;
+        synchronized (this) {
+            if (finished.isEmpty())
+                return;
+            forced = new ArrayList<>(finished);
+            finished.clear();
+        }
+        for (Segment segment : forced)
+            segment.buffer.force();
+    }
+    private static Segment openSegment(long id, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        /**
+         * End of written records
+         */
+        private int limit;
+
+        private Segment(long id, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e) {
+                System.err.println("Drained segment wasn't deleted: " + e.getMessage());
+            }
+        }
+    }
+    //endregion
+
+    /**
+     * @return count of logs appended but not inserted yet
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+    /**
+     * @return count of logs inserted by the drainer since the spool was opened
+     */
+    public long getDrainedCount() {
+        return drainedCount;
+    }
+    /**
+     * @return count of drained logs which the database refused, they aren't retried
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+    /**
+     * @return error of the last failed insertion, null if the last insertion succeeded
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Waits until all appended logs are inserted
+     * @return false if the timeout elapsed before
+     */
+    public synchronized boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pendingCount > 0 && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            wait(Math.max(1, remaining / 1_000_000));
+        }
+        return pendingCount == 0;
+    }
+
+    /**
+     * Writes appended logs to the disk, full segments are also forced by the drainer
+     */
+    public void force() {
+        forceFinished();
+        Segment head;
+        synchronized (this) {
+            head = this.head;
+        }
+        head.buffer.force();
+    }
+
+    /**
+     * Stops the drainer after the current batch, logs left are replayed when the spool is opened again
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            drainer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        force();
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            }
+            catch (IOException e) {
+                System.err.println("Segment wasn't closed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package mongo.db;
+
+import com.mongodb.client.*;
+import org.bson.*;
+import org.bson.conversions.Bson;
+import java.util.*;
+
+
+/**
+ * Alternative layout of logs used by {@link MongoLogHandler} instead of 'logs' collection.
+ * Queries return documents of the same form as queries over 'logs'
+ */
+interface LogStore {
+    /**
+     * @return indexes of records which weren't inserted with reasons
+     */
+    Map<Integer, String> insert(List<LogRecord> records);
+
+    MongoIterable<Document> findIpsByUrl(String url);
+    MongoIterable<Document> findUrlsOfIp(String ip);
+    MongoIterable<Document> findUrlsInTime(Date dateTime1, Date dateTime2);
+
+    /**
+     * @param pipeline report pipeline over documents of 'logs' form
+     * @param dateTime1 optional lower bound of datetime of reported logs, used to skip data
+     * @param dateTime2 optional upper bound of datetime of reported logs
+     */
+    AggregateIterable<Document> report(List<Bson> pipeline, Date dateTime1, Date dateTime2);
+}
@@ -0,0 +1,360 @@
+package mongo.db;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.InvalidParameterException;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Follows growing csv log files and inserts appended lines by batches of the handler batch size.
+ * A batch which isn't full is inserted after max latency. Directories of the files are watched,
+ * and the files are also checked every max latency where watching is slow.
+ * A file replaced by rotation is recognized by its file key (inode), the rest of the old file
+ * is read before the new one, a truncated file is read from the start.
+ * Offsets after the last inserted line of every file are saved to the checkpoint file,
+ * so following resumes there after a restart; lines read after the last checkpoint
+ * are inserted again, see {@link MongoLogHandler#enableDeduplication(long, int)}
+ */
+public class LogTailer implements AutoCloseable {
+    private static final long DEFAULT_MAX_LATENCY = 1000;
+    private static final int READ_SIZE = 1 << 20;
+    private static final long MAX_RETRY_DELAY = 10_000;
+
+    private final MongoLogHandler handler;
+    private final Path checkpoint;
+    private final Properties savedOffsets = new Properties();
+    private final Map<Path, Tail> tails = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch closing = new CountDownLatch(1);
+    private final Thread thread;
+    private volatile long maxLatency = DEFAULT_MAX_LATENCY;
+    private volatile long insertedCount;
+    private volatile long duplicateCount;
+    private volatile long rejectedCount;
+    private final List<LogRecord> batch = new ArrayList<>();
+    private long[] lineNumbers = new long[0];
+    private long batchStart;
+    private ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+
+    /**
+     * @param checkpoint file of saved offsets, offsets saved before are loaded
+     * @throws IOException if the checkpoint can't be read
+     */
+    public LogTailer(MongoLogHandler handler, Path checkpoint) throws IOException {
+        this.handler = handler;
+        this.checkpoint = checkpoint.toAbsolutePath();
+        if (Files.exists(this.checkpoint))
+            try (Reader reader = Files.newBufferedReader(this.checkpoint, StandardCharsets.UTF_8)) {
+                savedOffsets.load(reader);
+            }
+        watcher = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run, "log-tailer");
+        thread.setDaemon(true);
+    }
+
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatency, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * @param maxLatency time after which appended lines are inserted without waiting for a full batch
+     */
+    public void setMaxLatency(long maxLatency, TimeUnit unit) {
+        if (unit.toMillis(maxLatency) < 1)
+            throw new IllegalArgumentException("max latency must be at least 1ms");
+        this.maxLatency = unit.toMillis(maxLatency);
+    }
+
+    /**
+     * Starts following the file from the saved offset, or from the start if it wasn't followed before.
+     * The file may not exist yet. Files may be added before and after {@link #start()}
+     * @throws IOException if the directory of the file can't be watched
+     */
+    public void follow(Path file) throws IOException {
+        Path path = file.toAbsolutePath();
+        Path directory = path.getParent();
+        if (watchedDirectories.add(directory))
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        tails.computeIfAbsent(path, Tail::new);
+    }
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * @return count of lines inserted since start
+     */
+    public long getInsertedCount() {
+        return insertedCount;
+    }
+    /**
+     * @return count of lines inserted before, e.g. replayed after the checkpoint wasn't saved, since start
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+    /**
+     * @return count of invalid lines and lines refused by the database since start
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+    /**
+     * @return offsets after the last inserted line of followed files
+     */
+    public Map<Path, Long> getOffsets() {
+        Map<Path, Long> offsets = new TreeMap<>();
+        for (Tail tail : tails.values())
+            offsets.put(tail.path, tail.committedOffset);
+        return offsets;
+    }
+
+    //region Reading
+    private void run() {
+        try {
+            while (closing.getCount() > 0) {
+                WatchKey key = watcher.poll(Math.max(1, maxLatency - elapsedMillis()), TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                    key = watcher.poll();
+                }
+                for (Tail tail : tails.values())
+                    read(tail);
+                if (!batch.isEmpty() && elapsedMillis() >= maxLatency)
+                    flush();
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        }
+        catch (IOException e) {
+            System.err.println("Tailing stopped: " + e);
+        }
+        finally {
+            if (!batch.isEmpty())
+                flushOnce();
+            for (Tail tail : tails.values())
+                tail.close();
+        }
+    }
+    private long elapsedMillis() {
+        return batch.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStart);
+    }
+
+    private void read(Tail tail) throws IOException, InterruptedException {
+        Object fileKey = fileKey(tail.path);
+        if (tail.channel == null) {
+            if (fileKey == null)
+                return;
+            tail.open(fileKey);
+            if (tail.channel == null)
+                return;
+        }
+        else if (fileKey != null && !fileKey.equals(tail.fileKey)) {
+            readLines(tail, true);
+            if (!batch.isEmpty())
+                flush();
+            tail.close();
+            tail.reset();
+            tail.open(fileKey);
+            if (tail.channel == null)
+                return;
+        }
+        if (tail.channel.size() < tail.readOffset)
+            tail.reset();
+        readLines(tail, false);
+    }
+
+    /**
+     * Adds complete lines after readOffset to the batch, flushing full batches
+     * @param lastLine if true text after the last line break is a line too
+     */
+    private void readLines(Tail tail, boolean lastLine) throws IOException, InterruptedException {
+        while (closing.getCount() > 0) {
+            long base = tail.readOffset;
+            buffer.clear();
+            int read = tail.channel.read(buffer, base);
+            if (read <= 0)
+                return;
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    tail.readOffset = base + i + 1;
+                    add(tail, bytes, start, i);
+                    start = i + 1;
+                }
+            }
+            if (read < buffer.capacity()) {
+                if (start < read && lastLine) {
+                    tail.readOffset = base + read;
+                    add(tail, bytes, start, read);
+                }
+                return;
+            }
+            if (start == 0)
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        }
+    }
+    private void add(Tail tail, byte[] bytes, int start, int end) throws InterruptedException {
+        if (end > start && bytes[end - 1] == '\r')
+            end--;
+        tail.lineNumber++;
+        if (end > start) {
+            String line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            try {
+                LogRecord record = handler.parse(line, new LogRecord(), handler.getMetrics());
+                if (batch.isEmpty())
+                    batchStart = System.nanoTime();
+                if (lineNumbers.length <= batch.size())
+                    lineNumbers = Arrays.copyOf(lineNumbers, Math.max(16, lineNumbers.length * 2));
+                lineNumbers[batch.size()] = tail.lineNumber;
+                batch.add(record);
+            }
+            catch (InvalidParameterException e) {
+                rejectedCount++;
+            }
+        }
+        if (batch.size() >= handler.getBatchSize())
+            flush();
+    }
+    //endregion
+
+    //region Checkpoints
+    /**
+     * Inserts the batch, retrying with growing delays until it's inserted or the tailer is closed
+     */
+    private void flush() throws InterruptedException {
+        long delay = Math.min(maxLatency, MAX_RETRY_DELAY);
+        while (!flushOnce()) {
+            if (closing.await(delay, TimeUnit.MILLISECONDS))
+                throw new InterruptedException("tailer was closed");
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+    private boolean flushOnce() {
+        IngestResult result = new IngestResult();
+        try {
+            handler.insertBatch(batch, lineNumbers, result);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Tailed logs weren't inserted: " + e.getMessage());
+            return false;
+        }
+        insertedCount += result.getInsertedCount();
+        duplicateCount += result.getDuplicateCount();
+        rejectedCount += result.getRejectedCount();
+        batch.clear();
+        for (Tail tail : tails.values())
+            tail.committedOffset = tail.readOffset;
+        try {
+            saveCheckpoint();
+        }
+        catch (IOException e) {
+            System.err.println("Tailing checkpoint wasn't saved: " + e);
+        }
+        return true;
+    }
+
+    private void saveCheckpoint() throws IOException {
+        for (Tail tail : tails.values())
+            if (tail.fileKey != null)
+                savedOffsets.setProperty(tail.path.toString(), tail.committedOffset + " " + tail.fileKey);
+        Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            savedOffsets.store(writer, "offsets after inserted lines and file keys of followed files");
+        }
+        Files.move(temporary, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    //endregion
+
+    private static Object fileKey(Path path) {
+        try {
+            Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return fileKey != null ? fileKey : path;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops following, lines read before are inserted once more
+     */
+    @Override
+    public void close() {
+        closing.countDown();
+        try {
+            watcher.close();
+            if (thread.isAlive())
+                thread.join();
+        }
+        catch (IOException e) {
+            System.err.println("Watch service wasn't closed: " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Followed file, changed only by the tailer thread
+     */
+    private class Tail {
+        private final Path path;
+        private FileChannel channel;
+        private Object fileKey;
+        private long readOffset;
+        private volatile long committedOffset;
+        private long lineNumber;
+
+        private Tail(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Resumes from the saved offset if the saved file key is the key of the file
+         */
+        private void open(Object fileKey) throws IOException {
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            catch (NoSuchFileException e) {
+                return;
+            }
+            this.fileKey = fileKey;
+            String saved = savedOffsets.getProperty(path.toString());
+            if (saved != null) {
+                int separator = saved.indexOf(' ');
+                long offset = Long.parseLong(saved.substring(0, separator));
+                if (saved.substring(separator + 1).equals(fileKey.toString()) && offset <= channel.size()) {
+                    readOffset = offset;
+                    committedOffset = offset;
+                }
+            }
+        }
+        private void reset() {
+            readOffset = 0;
+            committedOffset = 0;
+            lineNumber = 0;
+        }
+        private void close() {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                System.err.println("Followed file wasn't closed: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.client.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Merge of results of several queries sorted in the same order, read lazily from their cursors.
+ * Cursors are opened in parallel, so the first batches of all queries are fetched at once,
+ * later batches are fetched when the merge reaches them, at most a batch per query is held in memory
+ */
+class MergedIterable<T> implements MongoIterable<T> {
+    private final List<MongoIterable<T>> sources;
+    private final Comparator<? super T> order;
+    private final ExecutorService executor;
+
+    /**
+     * @param sources results sorted by order
+     * @param executor opens cursors of sources
+     */
+    MergedIterable(List<MongoIterable<T>> sources, Comparator<? super T> order, ExecutorService executor) {
+        this.sources = sources;
+        this.order = order;
+        this.executor = executor;
+    }
+
+    @Override
+    public MongoCursor<T> iterator() {
+        List<Future<MongoCursor<T>>> futures = new ArrayList<>(sources.size());
+        List<MongoCursor<T>> cursors = new ArrayList<>(sources.size());
+        try {
+            for (MongoIterable<T> source : sources)
+                futures.add(executor.submit(source::iterator));
+            for (Future<MongoCursor<T>> future : futures)
+                cursors.add(future.get());
+            return new MergingCursor<>(cursors, order);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close(futures);
+            throw new MongoInterruptedException("merged query was interrupted", e);
+        }
+        catch (ExecutionException e) {
+            close(futures);
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new MongoException("merged query failed", e.getCause());
+        }
+    }
+    /**
+     * Closes cursors which are opened or will be opened by the futures
+     */
+    private void close(List<Future<MongoCursor<T>>> futures) {
+        for (Future<MongoCursor<T>> future : futures) {
+            if (future.cancel(false))
+                continue;
+            try {
+                future.get().close();
+            }
+            catch (ExecutionException e) {
+                // cursor wasn't opened
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public T first() {
+        try (MongoCursor<T> cursor = iterator()) {
+            return cursor.hasNext() ? cursor.next() : null;
+        }
+    }
+    @Override
+    public <U> MongoIterable<U> map(Function<T, U> mapper) {
+        MergedIterable<T> merged = this;
+        return new MongoIterable<U>() {
+            @Override
+            public MongoCursor<U> iterator() {
+                return new MappingCursor<>(merged.iterator(), mapper);
+            }
+            @Override
+            public U first() {
+                T first = merged.first();
+                return first == null ? null : mapper.apply(first);
+            }
+            @Override
+            public <V> MongoIterable<V> map(Function<U, V> next) {
+                return merged.map(result -> next.apply(mapper.apply(result)));
+            }
+            @Override
+            public void forEach(Block<? super U> block) {
+                try (MongoCursor<U> cursor = iterator()) {
+                    while (cursor.hasNext())
+                        block.apply(cursor.next());
+                }
+            }
+            @Override
+            public <A extends Collection<? super U>> A into(A target) {
+                try (MongoCursor<U> cursor = iterator()) {
+                    while (cursor.hasNext())
+                        target.add(cursor.next());
+                }
+                return target;
+            }
+            @Override
+            public MongoIterable<U> batchSize(int batchSize) {
+                return merged.batchSize(batchSize).map(mapper);
+            }
+        };
+    }
+    @Override
+    public void forEach(Block<? super T> block) {
+        try (MongoCursor<T> cursor = iterator()) {
+            while (cursor.hasNext())
+                block.apply(cursor.next());
+        }
+    }
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        try (MongoCursor<T> cursor = iterator()) {
+            while (cursor.hasNext())
+                target.add(cursor.next());
+        }
+        return target;
+    }
+    /**
+     * Batch size of every query
+     */
+    @Override
+    public MergedIterable<T> batchSize(int batchSize) {
+        List<MongoIterable<T>> sized = new ArrayList<>(sources.size());
+        for (MongoIterable<T> source : sources)
+            sized.add(source.batchSize(batchSize));
+        return new MergedIterable<>(sized, order, executor);
+    }
+
+    /**
+     * k-way merge of cursors by a heap of their next results
+     */
+    private static class MergingCursor<T> implements MongoCursor<T> {
+        private final PriorityQueue<Head<T>> heads;
+
+        private MergingCursor(List<MongoCursor<T>> cursors, Comparator<? super T> order) {
+            heads = new PriorityQueue<>(Math.max(1, cursors.size()), (a, b) -> order.compare(a.next, b.next));
+            for (MongoCursor<T> cursor : cursors) {
+                if (cursor.hasNext())
+                    heads.add(new Head<>(cursor));
+                else
+                    cursor.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+        @Override
+        public T next() {
+            Head<T> head = heads.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+            T next = head.next;
+            if (head.cursor.hasNext()) {
+                head.next = head.cursor.next();
+                heads.add(head);
+            }
+            else
+                head.cursor.close();
+            return next;
+        }
+        @Override
+        public T tryNext() {
+            return hasNext() ? next() : null;
+        }
+        @Override
+        public void close() {
+            for (Head<T> head : heads)
+                head.cursor.close();
+            heads.clear();
+        }
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+    }
+
+    private static class Head<T> {
+        private final MongoCursor<T> cursor;
+        private T next;
+
+        private Head(MongoCursor<T> cursor) {
+            this.cursor = cursor;
+            next = cursor.next();
+        }
+    }
+
+    private static class MappingCursor<T, U> implements MongoCursor<U> {
+        private final MongoCursor<T> cursor;
+        private final Function<T, U> mapper;
+
+        private MappingCursor(MongoCursor<T> cursor, Function<T, U> mapper) {
+            this.cursor = cursor;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+        @Override
+        public U next() {
+            return mapper.apply(cursor.next());
+        }
+        @Override
+        public U tryNext() {
+            T next = cursor.tryNext();
+            return next == null ? null : mapper.apply(next);
+        }
+        @Override
+        public void close() {
+            cursor.close();
+        }
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+    }
+}
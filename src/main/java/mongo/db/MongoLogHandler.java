@@ -1,294 +1,947 @@
 package mongo.db;
 
 import com.mongodb.*;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.*;
+import com.mongodb.client.model.*;
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Projections.*;
 import static com.mongodb.client.model.Sorts.*;
 import org.bson.*;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
+import java.io.*;
+import java.nio.file.Path;
 import java.security.InvalidParameterException;
-import java.text.*;
+import java.time.*;
+import java.time.format.*;
+import java.time.temporal.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.*;
+import java.util.stream.*;
 
 
 /**
  * Class handles queries for 'serverlogs' database,
- * 'logs' collection
+ * 'logs' collection.
+ * Handler is thread safe, so one instance may be shared by many threads
  */
 public class MongoLogHandler {
-    private MongoClient client;
-    private MongoDatabase database;
-    private MongoCollection<Document> collection;
-    private Map<String, Object> documentContent;
-    private StringBuilder jsonLog;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final DateTimeFormatter DATE_TIME_FORMAT = new DateTimeFormatterBuilder()
+            .appendPattern("uuuu-M-d'T'H:m:s")
+            .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+            .toFormatter(Locale.ENGLISH)
+            .withResolverStyle(ResolverStyle.LENIENT);
+    static final Bson IPS_BY_URL_SORT = descending("ip");
+    static final Bson IPS_BY_URL_PROJECTION = fields(include("ip"), excludeId());
+    static final Bson URLS_OF_IP_SORT = descending("url");
+    static final Bson URLS_OF_IP_PROJECTION = fields(include("url"), excludeId());
+    static final Bson URLS_IN_TIME_SORT = descending("url");
+    static final Bson URLS_IN_TIME_PROJECTION = fields(include("url"), excludeId());
+    static final Bson URLS_OF_IP_PAGE_SORT = orderBy(descending("url"), ascending("_id"));
+    static final Bson URLS_OF_IP_PAGE_PROJECTION = include("url");
+    static final Bson URLS_IN_TIME_PAGE_SORT = ascending("datetime", "_id");
+    static final Bson URLS_IN_TIME_PAGE_PROJECTION = include("url", "datetime");
+    /**
+     * _id after the sorted fields orders equal keys of pages,
+     * the indexes still cover find queries
+     */
+    private static final List<IndexModel> INDEXES = Arrays.asList(
+            new IndexModel(Indexes.compoundIndex(Indexes.ascending("url"), Indexes.descending("ip"))),
+            new IndexModel(Indexes.compoundIndex(Indexes.ascending("ip"), Indexes.descending("url"),
+                    Indexes.ascending("_id"))),
+            new IndexModel(Indexes.compoundIndex(Indexes.ascending("datetime", "_id"), Indexes.descending("url"))));
+    /**
+     * Indexes created by earlier versions without _id, INDEXES replace them
+     */
+    private static final List<String> SUPERSEDED_INDEXES = Arrays.asList("ip_1_url_-1", "datetime_1_url_-1");
+    private final MongoClient client;
+    private final MongoDatabase database;
+    private final MongoCollection<Document> collection;
+    private final MongoCollection<LogRecord> recordCollection;
+    private final LogParser parser;
+    private final ThreadLocal<LogRecord> records;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile boolean allowDiskUse;
+    private volatile LogRollups rollups;
+    private volatile LogStore store;
+    private volatile QueryCache cache;
+    private volatile LogSketches sketches;
+    private volatile LogSpool spool;
+    private volatile TimePartitions partitions;
+    private volatile LogDeduplicator deduplicator;
+    private volatile LogRetention retention;
+    private volatile LogMetrics metrics = new DefaultLogMetrics();
     public MongoDatabase getDatabase() {
         return database;
     }
+    /**
+     * @return 'logs' collection which reads and writes records by {@link LogRecordCodec}
+     */
+    public MongoCollection<LogRecord> getRecordCollection() {
+        return recordCollection;
+    }
     public MongoCollection<Document> getCollection() {
         return collection;
     }
+    public int getBatchSize() {
+        return batchSize;
+    }
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.batchSize = batchSize;
+    }
+    public boolean isAllowDiskUse() {
+        return allowDiskUse;
+    }
+    /**
+     * @param allowDiskUse lets report stages write temporary files
+     *                     when they exceed the memory limit of the server
+     */
+    public void setAllowDiskUse(boolean allowDiskUse) {
+        this.allowDiskUse = allowDiskUse;
+    }
+
+    public StorageLayout getStorageLayout() {
+        LogStore store = this.store;
+        if (store instanceof BucketedLogStore)
+            return StorageLayout.HOURLY_BUCKETS;
+        if (store instanceof CompactLogStore)
+            return StorageLayout.COMPACT;
+        return StorageLayout.DOCUMENTS;
+    }
+    /**
+     * Chooses where inserted logs are stored and queried from.
+     * Logs stored in another layout before aren't moved, see {@link #migrateLogs()}
+     */
+    public void setStorageLayout(StorageLayout layout) {
+        if (layout != StorageLayout.DOCUMENTS && deduplicator != null)
+            throw new IllegalStateException("deduplication requires documents storage layout");
+        if (layout != StorageLayout.DOCUMENTS && retention != null)
+            throw new IllegalStateException("retention requires documents storage layout");
+        switch (layout) {
+            case HOURLY_BUCKETS:
+                store = new BucketedLogStore(database);
+                break;
+            case COMPACT:
+                store = new CompactLogStore(database);
+                break;
+            default:
+                store = null;
+        }
+        clearCache();
+    }
+    /**
+     * Copies all logs of 'logs' collection into the current storage layout,
+     * e.g. after switching to {@link StorageLayout#COMPACT}.
+     * Should run once, 'logs' collection isn't changed. Rollups aren't updated, see {@link #rebuildRollups()}
+     * @return count of copied logs
+     */
+    public long migrateLogs() {
+        LogStore store = this.store;
+        if (store == null)
+            throw new IllegalStateException("logs are already stored in documents layout");
+        int batchSize = this.batchSize;
+        long count = 0;
+        List<LogRecord> batch = new ArrayList<>(batchSize);
+        try (MongoCursor<LogRecord> cursor = recordCollection.find().batchSize(batchSize).iterator()) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == batchSize) {
+                    count += batch.size() - store.insert(batch).size();
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty())
+            count += batch.size() - store.insert(batch).size();
+        clearCache();
+        return count;
+    }
+    public LogRollups getRollups() {
+        return rollups;
+    }
+    /**
+     * Turns on counters which are updated with every insert and used by reports
+     * instead of aggregation over all logs. Counters of logs inserted before
+     * are computed by {@link #rebuildRollups()}
+     * @param hourlyBuckets if true url counters are also kept per hour
+     */
+    public void enableRollups(boolean hourlyBuckets) {
+        rollups = new LogRollups(database, hourlyBuckets);
+        clearCache();
+    }
+    public void disableRollups() {
+        rollups = null;
+        clearCache();
+    }
+    public void rebuildRollups() {
+        LogStore store = this.store;
+        requireRollups().rebuild(pipeline -> store != null ? store.report(pipeline, null, null)
+                : collection.aggregate(pipeline));
+    }
+    private LogRollups requireRollups() {
+        LogRollups rollups = this.rollups;
+        if (rollups == null)
+            throw new IllegalStateException("rollups are disabled");
+        return rollups;
+    }
+
+    public LogSketches getSketches() {
+        return sketches;
+    }
+    /**
+     * Turns on approximate statistics of inserted logs, see {@link LogSketches}.
+     * Sketches saved before are loaded
+     * @param topCapacity count of urls and ips tracked by top summaries
+     * @param hours count of the latest hours with own top urls
+     * @param saveInterval period of saving sketches to the database, 0 saves only when disabled or closed
+     */
+    public void enableSketches(int topCapacity, int hours, long saveInterval, TimeUnit unit) {
+        LogSketches previous = sketches;
+        sketches = null;
+        if (previous != null)
+            previous.close();
+        sketches = new LogSketches(database, topCapacity, hours, saveInterval, unit);
+    }
+    /**
+     * Saves and turns off sketches
+     */
+    public void disableSketches() {
+        LogSketches sketches = this.sketches;
+        this.sketches = null;
+        if (sketches != null)
+            sketches.close();
+    }
+
+    public LogSpool getSpool() {
+        return spool;
+    }
+    /**
+     * Turns on write-behind mode: {@link #insertLog(String)} and {@link #insertLogs(Iterable)}
+     * append valid logs to spool files in the directory and return without waiting for the database,
+     * see {@link LogSpool}. Logs left in the directory by a previous spool are inserted
+     * @throws IOException if spool files can't be read or created
+     */
+    public void enableSpool(Path directory) throws IOException {
+        enableSpool(directory, LogSpool.DEFAULT_SEGMENT_SIZE);
+    }
+    /**
+     * @param segmentSize size of spool files in bytes
+     */
+    public void enableSpool(Path directory, int segmentSize) throws IOException {
+        disableSpool();
+        spool = new LogSpool(this, directory, segmentSize);
+    }
+    /**
+     * Stops draining, logs not inserted yet stay in spool files
+     */
+    public void disableSpool() {
+        LogSpool spool = this.spool;
+        this.spool = null;
+        if (spool != null)
+            spool.close();
+    }
+
+    /**
+     * Turns on parallel execution of {@link #findUrlsInTime(Date, Date)} and
+     * {@link #findUrlsCountByTime(Date, Date, int)}: windows longer than partitionSize are split
+     * into partitions which are queried at the same time and merged, results equal serial results
+     * @param threads count of partitions queried at the same time by all threads using the handler
+     */
+    public void enablePartitionedQueries(long partitionSize, TimeUnit unit, int threads) {
+        TimePartitions partitions = new TimePartitions(partitionSize, unit, threads);
+        disablePartitionedQueries();
+        this.partitions = partitions;
+    }
+    public void disablePartitionedQueries() {
+        TimePartitions partitions = this.partitions;
+        this.partitions = null;
+        if (partitions != null)
+            partitions.close();
+    }
+
+    public boolean isDeduplicationEnabled() {
+        return deduplicator != null;
+    }
+    /**
+     * Turns on idempotent inserts: logs get _id computed from ip, datetime, duration and url,
+     * a log inserted again is skipped and counted as duplicate, see {@link IngestResult#getDuplicateCount()}.
+     * Ids of inserted logs are remembered to skip duplicates without inserting them,
+     * ids of the latest logs inserted with deduplication before are loaded
+     * @param expectedLogs count of remembered ids with 1% of needless lookups
+     * @param warmUpLogs count of the latest logs by datetime which ids are loaded
+     * @return count of loaded ids
+     */
+    public int enableDeduplication(long expectedLogs, int warmUpLogs) {
+        if (store != null)
+            throw new IllegalStateException("deduplication requires documents storage layout");
+        LogDeduplicator deduplicator = new LogDeduplicator(collection, recordCollection.withCodecRegistry(
+                CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new LogRecordCodec(true)),
+                        collection.getCodecRegistry())), expectedLogs);
+        int loaded = deduplicator.warmUp(warmUpLogs);
+        this.deduplicator = deduplicator;
+        return loaded;
+    }
+    /**
+     * Logs inserted after get ObjectId ids, logs inserted with deduplication keep their ids
+     */
+    public void disableDeduplication() {
+        deduplicator = null;
+    }
+
+    public LogRetention getRetention() {
+        return retention;
+    }
+    /**
+     * Turns on retention tiers, see {@link LogRetention}: raw logs expire rawRetention after their datetime,
+     * hourly and daily counts and durations per url and per ip are kept longer.
+     * {@link #findUrlsCountByTime(Date, Date, int)} and {@link #findIpsCountByTime(Date, Date, int)}
+     * read aggregates when raw logs of the window have expired, then they count whole hours or days
+     * at the start of the window, and at the end while raw logs of the last hour or day are expired too.
+     * All-time reports read daily aggregates and raw logs not downsampled yet, so they cover dailyRetention.
+     * Rollups, if enabled, still answer all-time reports, they don't expire
+     */
+    public void enableRetention(long rawRetention, long hourlyRetention, long dailyRetention, TimeUnit unit) {
+        if (store != null)
+            throw new IllegalStateException("retention requires documents storage layout");
+        LogRetention previous = retention;
+        retention = null;
+        if (previous != null)
+            previous.close();
+        retention = new LogRetention(database, collection, rawRetention, hourlyRetention, dailyRetention, unit);
+        clearCache();
+    }
+    /**
+     * Stops downsampling and expiration of raw logs, aggregates are kept
+     */
+    public void disableRetention() {
+        LogRetention retention = this.retention;
+        this.retention = null;
+        if (retention != null) {
+            retention.close();
+            retention.dropTtlIndex();
+        }
+        clearCache();
+    }
+
+    public QueryCache getQueryCache() {
+        return cache;
+    }
+    /**
+     * Turns on caching of find and report results.
+     * Inserts through the handler invalidate cached lookups of inserted urls and ips
+     * and time windows containing inserted logs, other reports expire after ttl
+     * @param maxEntries count of cached results, least recently used are evicted
+     */
+    public void enableCache(int maxEntries, long ttl, TimeUnit unit) {
+        cache = new QueryCache(maxEntries, ttl, unit);
+    }
+    public void disableCache() {
+        cache = null;
+    }
+    private void clearCache() {
+        QueryCache cache = this.cache;
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * @return metrics of the handler, {@link DefaultLogMetrics} unless replaced
+     */
+    public LogMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * @param metrics receiver of measurements, {@link LogMetrics#NONE} turns measurements off
+     */
+    public void setMetrics(LogMetrics metrics) {
+        if (metrics == null)
+            throw new IllegalArgumentException("metrics must not be null, use LogMetrics.NONE");
+        this.metrics = metrics;
+    }
 
     public MongoLogHandler() throws com.mongodb.MongoSocketOpenException {
-        client = new MongoClient("localhost", 27017);
-        database = client.getDatabase("serverlogs");
+        this("localhost", 27017, "serverlogs");
+    }
+    /**
+     * Handler of 'logs' collection in another database, e.g. for benchmarks
+     */
+    public MongoLogHandler(String host, int port, String databaseName) throws com.mongodb.MongoSocketOpenException {
+        client = new MongoClient(host, port);
+        database = client.getDatabase(databaseName);
         collection = database.getCollection("logs");
-        documentContent = new HashMap<>();
-        jsonLog = new StringBuilder("{}");
+        recordCollection = collection.withDocumentClass(LogRecord.class).withCodecRegistry(
+                CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new LogRecordCodec()),
+                        collection.getCodecRegistry()));
+        parser = new LogParser();
+        records = ThreadLocal.withInitial(LogRecord::new);
+        ensureIndexes();
     }
 
     public void close() {
-         client.close();
+        disableSpool();
+        LogRetention retention = this.retention;
+        if (retention != null)
+            retention.close();
+        disablePartitionedQueries();
+        disableSketches();
+        client.close();
     }
 
+    /**
+     * With deduplication a log inserted before is skipped and counted by {@link LogMetrics#duplicated(int)}
+     */
     public void insertLog(String csvLog) throws InvalidParameterException {
-        if (isValid(csvLog)) {
-            getMapFromJsonLog();
-        /*Document document = new Document("url", documentContent.get("url"))
-                    .append("ip", documentContent.get("ip"))
-                    .append("datetime", getDateTime())
-                    .append("duration", documentContent.get("duration"));*/
-            collection.insertOne(new Document(documentContent));
-            System.out.println("Document inserted successfully");
+        LogMetrics metrics = this.metrics;
+        LogRecord record = parse(csvLog, records.get(), metrics);
+        LogSpool spool = this.spool;
+        if (spool != null) {
+            spool(spool, record);
+            return;
         }
+        LogStore store = this.store;
+        LogDeduplicator deduplicator = this.deduplicator;
+        BitSet duplicates = new BitSet(1);
+        int inserted = 0;
+        metrics.insertStarted();
+        long start = System.nanoTime();
+        try {
+            if (store == null && deduplicator == null)
+                recordCollection.insertOne(record);
+            else {
+                Map<Integer, String> failures = store != null ? store.insert(Collections.singletonList(record))
+                        : deduplicator.insert(Collections.singletonList(record), duplicates);
+                if (!failures.isEmpty())
+                    throw new MongoException(failures.get(0));
+            }
+            inserted = duplicates.isEmpty() ? 1 : 0;
+        }
+        catch (RuntimeException e) {
+            metrics.rejected(e.getMessage());
+            throw e;
+        }
+        finally {
+            metrics.insertFinished(inserted, System.nanoTime() - start);
+        }
+        if (!duplicates.isEmpty()) {
+            metrics.duplicated(1);
+            return;
+        }
+        LogRollups rollups = this.rollups;
+        if (rollups != null)
+            rollups.add(Collections.singletonList(record));
+        LogSketches sketches = this.sketches;
+        if (sketches != null)
+            sketches.add(Collections.singletonList(record));
+        invalidateCache(Collections.singletonList(record));
+        System.out.println("Document inserted successfully");
     }
-    private void getMapFromJsonLog() {
-        String partLog = jsonLog.toString();
-        String set = partLog.substring(1 ,partLog.indexOf(","));
-        String attr, value;
-        while (partLog.length() > 0) {
-            attr = set.substring(0, set.indexOf(":"));
-            value = set.substring(set.indexOf(":") + 2);
+
+    /**
+     * Inserts valid logs by unordered batches of batchSize documents.
+     * The handler may be shared by several threads inserting at the same time.
+     * In write-behind mode logs are counted as inserted when they are spooled
+     * @param csvLogs strings in comma separated format
+     * @return count of inserted documents, numbers and reasons of rejected lines
+     */
+    public IngestResult insertLogs(Iterable<String> csvLogs) {
+        IngestResult result = new IngestResult();
+        LogSpool spool = this.spool;
+        LogRecord record = new LogRecord();
+        int batchSize = this.batchSize;
+        List<LogRecord> batch = new ArrayList<>(batchSize);
+        long[] lineNumbers = new long[batchSize];
+        long lineNumber = 0;
+        LogMetrics metrics = this.metrics;
+        for (String csvLog : csvLogs) {
+            lineNumber++;
             try {
-                // why so strange float ?
-                documentContent.put(removeOddQuotes(attr), Float.parseFloat(value));
+                parse(csvLog, record, metrics);
             }
-            catch (NumberFormatException e) {
-                try {
-                    SimpleDateFormat parser = new SimpleDateFormat("EEE MMM d HH:mm:ss zzz yyyy", Locale.ENGLISH);
-                    documentContent.put(removeOddQuotes(attr), parser.parse(value));
-                }
-                catch (ParseException e1) {
-                    documentContent.put(removeOddQuotes(attr),removeOddQuotes(value));
-                }
+            catch (InvalidParameterException e) {
+                result.reject(lineNumber, e.getMessage());
+                continue;
             }
-            if (partLog.contains(",")) {
-                partLog = partLog.substring(partLog.indexOf(",") + 1);
-                if (partLog.contains(","))
-                    set = partLog.substring(0, partLog.indexOf(","));
-                else
-                    set = partLog.substring(0, partLog.indexOf("}"));
-
+            if (spool != null) {
+                spool(spool, record);
+                result.addInserted(1);
+                continue;
+            }
+            lineNumbers[batch.size()] = lineNumber;
+            batch.add(record);
+            record = new LogRecord();
+            if (batch.size() == batchSize) {
+                insertBatch(batch, lineNumbers, result);
+                batch.clear();
             }
-            else
-                partLog = "";
         }
+        if (!batch.isEmpty())
+            insertBatch(batch, lineNumbers, result);
+        return result;
     }
-    private String removeOddQuotes(String attr) {
-        String newAttr = attr;
-        if (attr.contains("\""))
-            newAttr = attr.substring(1,attr.length() - 1);
-        return newAttr;
+    public IngestResult insertLogs(Stream<String> csvLogs) {
+        return insertLogs(csvLogs::iterator);
     }
 
-    public Date getDateTime(String dateTime) {
-        String date = dateTime.substring(0, dateTime.indexOf("T"));
-        String time = dateTime.substring(dateTime.indexOf("T") + 1);
+    /**
+     * Inserts csv file in parallel, see {@link LogFileIngester}
+     * @param path csv file with one log per line
+     * @return count of inserted documents, numbers and reasons of rejected lines
+     * @throws IOException if file can't be read
+     */
+    public IngestResult ingestFile(Path path) throws IOException {
+        return new LogFileIngester(this).ingestFile(path);
+    }
 
-        List<String> dateValues = getValues(date, '-');
-        int year = Integer.parseInt(dateValues.get(0));
-        int month = Integer.parseInt(dateValues.get(1));
-        int day = Integer.parseInt(dateValues.get(2));
+    /**
+     * Follows growing csv files and inserts appended lines, see {@link LogTailer}
+     * @param checkpoint file where offsets of inserted lines are saved
+     * @return started tailer, it must be closed
+     * @throws IOException if the checkpoint can't be read or directories of files can't be watched
+     */
+    public LogTailer followFiles(Path checkpoint, Path... files) throws IOException {
+        LogTailer tailer = new LogTailer(this, checkpoint);
+        try {
+            for (Path file : files)
+                tailer.follow(file);
+        }
+        catch (IOException e) {
+            tailer.close();
+            throw e;
+        }
+        tailer.start();
+        return tailer;
+    }
 
-        List<String> timeValues = getValues(time, ':');
-        int hours = Integer.parseInt(timeValues.get(0));
-        int minutes = Integer.parseInt(timeValues.get(1));
-        int seconds = timeValues.get(2).contains(".") ?
-                Integer.parseInt(timeValues.get(2).
-                        substring(0, timeValues.get(2).indexOf("."))): Integer.parseInt(timeValues.get(2));
+    void insertBatch(List<LogRecord> batch, long[] lineNumbers, IngestResult result) {
+        LogMetrics metrics = this.metrics;
+        LogStore store = this.store;
+        LogDeduplicator deduplicator = this.deduplicator;
+        BitSet duplicates = new BitSet();
+        Map<Integer, String> failures = null;
+        metrics.insertStarted();
+        long start = System.nanoTime();
+        try {
+            if (store != null)
+                failures = store.insert(batch);
+            else
+                failures = deduplicator != null ? deduplicator.insert(batch, duplicates) : insertRecords(batch);
+        }
+        catch (RuntimeException e) {
+            for (int i = 0; i < batch.size(); i++)
+                metrics.rejected(e.getMessage());
+            throw e;
+        }
+        finally {
+            metrics.insertFinished(failures == null ? 0 : batch.size() - failures.size() - duplicates.cardinality(),
+                    System.nanoTime() - start);
+        }
+        int duplicateCount = duplicates.cardinality();
+        result.addInserted(batch.size() - failures.size() - duplicateCount);
+        if (duplicateCount > 0) {
+            result.addDuplicates(duplicateCount);
+            metrics.duplicated(duplicateCount);
+        }
 
-        return new Date(year - 1900, month - 1, day, hours, minutes, seconds);
+        List<LogRecord> inserted = batch;
+        if (!failures.isEmpty() || duplicateCount > 0) {
+            inserted = new ArrayList<>(batch.size() - failures.size() - duplicateCount);
+            for (int i = 0; i < batch.size(); i++) {
+                if (failures.containsKey(i)) {
+                    result.reject(lineNumbers[i], failures.get(i));
+                    metrics.rejected(failures.get(i));
+                }
+                else if (!duplicates.get(i))
+                    inserted.add(batch.get(i));
+            }
+        }
+        LogRollups rollups = this.rollups;
+        if (rollups != null && !inserted.isEmpty())
+            rollups.add(inserted);
+        LogSketches sketches = this.sketches;
+        if (sketches != null && !inserted.isEmpty())
+            sketches.add(inserted);
+        invalidateCache(inserted);
     }
-
-    public boolean isValid(String csvLog) throws InvalidParameterException {
-        documentContent.clear();
-        jsonLog = new StringBuilder("{}");
-        return isFull(csvLog) && matchPattern(csvLog);
+    private static void spool(LogSpool spool, LogRecord record) {
+        try {
+            spool.append(record);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
-
-    private boolean isFull(String csvLog) {
-        String partLog = csvLog;
-        int i = 0;
-        while (partLog.contains(",")) {
-            i++;
-            partLog = partLog.substring(partLog.indexOf(",") + 1);
+    private Map<Integer, String> insertRecords(List<LogRecord> batch) {
+        Map<Integer, String> failures = new HashMap<>();
+        try {
+            recordCollection.insertMany(batch, new InsertManyOptions().ordered(false));
         }
-        if (i !=3 )
-            throw new InvalidParameterException("not enough values");
+        catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors())
+                failures.put(error.getIndex(), error.getMessage());
+        }
+        return failures;
+    }
 
-        return true;
+    public Date getDateTime(String dateTime) {
+        LocalDateTime localDateTime = LocalDateTime.parse(dateTime, DATE_TIME_FORMAT).truncatedTo(ChronoUnit.SECONDS);
+        return Date.from(localDateTime.atZone(ZoneId.systemDefault()).toInstant());
     }
 
     /**
      * The method checks if the count of values and if all required values present
-     * Also forms jsonString
+     * Also fills the record for insertion
      * @param csvLog string in comma separated format
      * @return true if csvLog contains all needed values
      * @throws InvalidParameterException else
      */
-    private boolean matchPattern(String csvLog) throws InvalidParameterException {
-        List<String> values = getValues(csvLog, ',');
-        String value;
-        for (int i= 0; i < values.size(); i++) {
-            value = values.get(i);
-            if (i > 0 && i < values.size())
-                jsonLog.insert(jsonLog.length()-1,",");
-
-            if (!jsonLog.toString().contains("ip") && isIP(value)) {
-                appendJsonLog("ip", value);
-                continue;
-            }
-            if (!jsonLog.toString().contains("duration") && isDuration(value)) {
-                appendJsonLog("duration", Float.parseFloat(value));
-                continue;
-            }
-            if (!jsonLog.toString().contains("datetime") && isDateTime(value)) {
-                appendJsonLog("datetime", getDateTime(value));
-                continue;
-            }
-            if (!jsonLog.toString().contains("url") && isUrl(value)) {
-                appendJsonLog("url",value);
-                continue;
-            }
-            throw new InvalidParameterException("incorrect value");
-        }
-        return isFull(jsonLog.toString());
+    public boolean isValid(String csvLog) throws InvalidParameterException {
+        parser.parse(csvLog, records.get());
+        return true;
     }
-
-    private boolean isDateTime(String value) {
-        Pattern datetimePattern = Pattern.
-                compile("^(200\\d|201[0-7])" +
-                        "-(0?[1-9]|1[012])-(0?[1-9]|[12]\\d|3[01])" +
-                        "T([01]?\\d|2[0-3]):([0-5]?\\d):([0-5]?\\d)$");
-        Matcher datetimeMatcher = datetimePattern.matcher(value);
-        return datetimeMatcher.matches();
-    }
-    private boolean isDuration(String value) {
+    /**
+     * Parses a line of inserted logs and passes parsing time or rejection reason to metrics
+     */
+    LogRecord parse(String csvLog, LogRecord record, LogMetrics metrics) throws InvalidParameterException {
+        long start = System.nanoTime();
         try {
-            Integer.parseInt(value);
+            parser.parse(csvLog, record);
+        }
+        catch (InvalidParameterException e) {
+            metrics.rejected(e.getMessage());
+            throw e;
         }
-        catch (NumberFormatException e) {
+        metrics.parsed(System.nanoTime() - start);
+        return record;
+    }
+
+    public MongoIterable<Document> findIpsByUrl(String url) {
+        return cached("findIpsByUrl", () -> {
+            LogStore store = this.store;
+            if (store != null)
+                return store.findIpsByUrl(url);
+            return collection.find(eq("url", url)).sort(IPS_BY_URL_SORT).projection(IPS_BY_URL_PROJECTION);
+        }, url);
+    }
+    public MongoIterable<Document> findUrlsOfIp(String ip) {
+        return cached("findUrlsOfIp", () -> urlsOfIp(ip), ip);
+    }
+    private MongoIterable<Document> urlsOfIp(String ip) {
+        LogStore store = this.store;
+        if (store != null)
+            return store.findUrlsOfIp(ip);
+        return collection.find(eq("ip", ip)).sort(URLS_OF_IP_SORT).projection(URLS_OF_IP_PROJECTION);
+    }
+    public MongoIterable<Document> findUrlsInTime(String dateTime1, String dateTime2) {
+        return findUrlsInTime(getDateTime(dateTime1), getDateTime(dateTime2));
+    }
+    public MongoIterable<Document> findUrlsInTime(Date dateTime1, Date dateTime2) {
+        return cached("findUrlsInTime", () -> {
+            TimePartitions partitions = this.partitions;
+            return partitions != null ? partitions.findUrlsInTime(dateTime1, dateTime2, this::urlsInTime)
+                    : urlsInTime(dateTime1, dateTime2);
+        }, dateTime1, dateTime2);
+    }
+    private MongoIterable<Document> urlsInTime(Date dateTime1, Date dateTime2) {
+        LogStore store = this.store;
+        if (store != null)
+            return store.findUrlsInTime(dateTime1, dateTime2);
+        return collection.find(timeFilter(dateTime1, dateTime2)).
+                projection(URLS_IN_TIME_PROJECTION).sort(URLS_IN_TIME_SORT);
+    }
+
+    /**
+     * Streaming variants return results of find methods lazily, reading them by batches
+     * of batchSize documents, so large results aren't loaded at once.
+     * The stream holds a cursor and must be closed, e.g. by try-with-resources
+     */
+    public Stream<Document> streamUrlsOfIp(String ip, int batchSize) {
+        return stream("streamUrlsOfIp", urlsOfIp(ip), batchSize);
+    }
+    public Stream<Document> streamUrlsInTime(Date dateTime1, Date dateTime2, int batchSize) {
+        return stream("streamUrlsInTime", urlsInTime(dateTime1, dateTime2), batchSize);
+    }
+    private Stream<Document> stream(String method, MongoIterable<Document> results, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        MongoCursor<Document> cursor = timed(method, results.batchSize(batchSize)).iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+    }
+
+    /**
+     * Pages of urls of the ip in the order of {@link #findUrlsOfIp(String)}, equal urls are ordered by _id.
+     * Page documents are {url, _id}. Pages need {@link StorageLayout#DOCUMENTS}
+     * @param after {@link LogPage#getNextKey()} of the previous page, null for the first page
+     */
+    public LogPage findUrlsOfIpPage(String ip, Document after, int pageSize) {
+        Bson filter = eq("ip", ip);
+        if (after != null)
+            filter = and(filter, or(lt("url", after.getString("url")),
+                    and(eq("url", after.getString("url")), gt("_id", after.get("_id")))));
+        return page("findUrlsOfIpPage", filter, URLS_OF_IP_PAGE_SORT, URLS_OF_IP_PAGE_PROJECTION, "url", pageSize);
+    }
+    /**
+     * Pages of urls visited in (dateTime1, dateTime2) ordered by datetime and _id.
+     * Page documents are {url, datetime, _id}. Pages need {@link StorageLayout#DOCUMENTS}
+     * @param after {@link LogPage#getNextKey()} of the previous page, null for the first page
+     */
+    public LogPage findUrlsInTimePage(Date dateTime1, Date dateTime2, Document after, int pageSize) {
+        Bson filter = timeFilter(dateTime1, dateTime2);
+        if (after != null)
+            filter = and(filter, or(gt("datetime", after.getDate("datetime")),
+                    and(eq("datetime", after.getDate("datetime")), gt("_id", after.get("_id")))));
+        return page("findUrlsInTimePage", filter, URLS_IN_TIME_PAGE_SORT, URLS_IN_TIME_PAGE_PROJECTION, "datetime",
+                pageSize);
+    }
+    private LogPage page(String method, Bson filter, Bson sort, Bson projection, String keyField, int pageSize) {
+        requireDocumentsLayout("pages");
+        if (pageSize < 1)
+            throw new IllegalArgumentException("page size must be positive");
+        List<Document> documents = timed(method, collection.find(filter).sort(sort).projection(projection)
+                .limit(pageSize + 1)).into(new ArrayList<>(pageSize + 1));
+        if (documents.size() <= pageSize)
+            return new LogPage(documents, null);
+        documents.remove(pageSize);
+        Document last = documents.get(pageSize - 1);
+        return new LogPage(documents, new Document(keyField, last.get(keyField)).append("_id", last.get("_id")));
+    }
+    /**
+     * Typed variants of find methods return whole logs decoded by {@link LogRecordCodec}
+     * in the order of their document counterparts. They read 'logs' collection directly,
+     * so they need {@link StorageLayout#DOCUMENTS} and bypass the query cache
+     */
+    public MongoIterable<LogRecord> findRecordsByUrl(String url) {
+        return findRecords("findRecordsByUrl", eq("url", url), IPS_BY_URL_SORT);
+    }
+    public MongoIterable<LogRecord> findRecordsOfIp(String ip) {
+        return findRecords("findRecordsOfIp", eq("ip", ip), URLS_OF_IP_SORT);
+    }
+    public MongoIterable<LogRecord> findRecordsInTime(Date dateTime1, Date dateTime2) {
+        return findRecords("findRecordsInTime", timeFilter(dateTime1, dateTime2), URLS_IN_TIME_SORT);
+    }
+    private MongoIterable<LogRecord> findRecords(String method, Bson filter, Bson sort) {
+        requireDocumentsLayout("typed finds");
+        return timed(method, recordCollection.find(filter).sort(sort).projection(excludeId()));
+    }
+    private void requireDocumentsLayout(String queries) {
+        if (store != null)
+            throw new IllegalStateException(queries + " require documents storage layout");
+    }
+    static Bson timeFilter(Date dateTime1, Date dateTime2) {
+        return and(gt("datetime", dateTime1), lt("datetime", dateTime2));
+    }
+
+    //region Explain
+    /**
+     * Creates indexes used by find queries if they don't exist yet.
+     * Each index contains all fields of its query,
+     * so the queries are covered and don't read documents.
+     * Superseded indexes are dropped, so inserts don't maintain both
+     */
+    public void ensureIndexes() {
+        for (Document index : collection.listIndexes()) {
+            String name = index.getString("name");
+            if (!SUPERSEDED_INDEXES.contains(name))
+                continue;
             try {
-                Float.parseFloat(value);
+                collection.dropIndex(name);
             }
-            catch (NumberFormatException e1) {
-                return  false;
+            catch (MongoCommandException e) {
+                // dropped by another handler meanwhile
             }
         }
-        return true;
+        collection.createIndexes(INDEXES);
+    }
+
+    /**
+     * Explain methods return query plan of corresponding find query,
+     * see {@link #hasStage(Document, String)}
+     */
+    public Document explainIpsByUrl(String url) {
+        return explainFind(eq("url", url), IPS_BY_URL_SORT, IPS_BY_URL_PROJECTION);
     }
-    private boolean isIP(String value) {
-        Pattern durationPattern = Pattern.
-                compile("^((25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$");
-        Matcher durationMatcher = durationPattern.matcher(value);
-        return durationMatcher.matches();
+    public Document explainUrlsOfIp(String ip) {
+        return explainFind(eq("ip", ip), URLS_OF_IP_SORT, URLS_OF_IP_PROJECTION);
     }
-    private boolean isUrl(String value) {
-        Pattern durationPattern = Pattern.
-                compile("^(http://|https://|www.)?((((\\S+/)+\\S)(\\S*))|(\\S*\\.\\S*))$");
-        Matcher durationMatcher = durationPattern.matcher(value);
-        return durationMatcher.matches();
+    public Document explainUrlsInTime(Date dateTime1, Date dateTime2) {
+        return explainFind(timeFilter(dateTime1, dateTime2), URLS_IN_TIME_SORT, URLS_IN_TIME_PROJECTION);
     }
-
-    private void appendJsonLog(String attr, Object value) {
-        appendJsonLogWithString(attr);
-        jsonLog.insert(jsonLog.length()-1, ": ");
-        if (value instanceof String)
-            appendJsonLogWithString(value.toString());
-        else
-            jsonLog.insert(jsonLog.length()-1, value);
-    }
-    private void appendJsonLogWithString(String attr) {
-        jsonLog.insert(jsonLog.length()-1,"\"");
-        jsonLog.insert(jsonLog.length()-1, attr);
-        jsonLog.insert(jsonLog.length()-1,"\"");
+    private Document explainFind(Bson filter, Bson sort, Bson projection) {
+        Document find = new Document("find", collection.getNamespace().getCollectionName())
+                .append("filter", toBsonDocument(filter))
+                .append("sort", toBsonDocument(sort))
+                .append("projection", toBsonDocument(projection));
+        return database.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+    }
+    private BsonDocument toBsonDocument(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, collection.getCodecRegistry());
     }
 
-    private List<String> getValues(String csvLog, char separator) {
-        String partLog = csvLog;
-        List<String> values = new ArrayList<>();
-        while (partLog.indexOf(separator) != -1) {
-            values.add((partLog.substring(0, partLog.indexOf(separator))).trim());
-            partLog = partLog.substring(partLog.indexOf(separator) + 1);
+    /**
+     * @param explain result of explain method
+     * @param stage name of plan stage, e.g. COLLSCAN, IXSCAN, FETCH, SORT
+     * @return true if winning plan contains the stage
+     */
+    public static boolean hasStage(Document explain, String stage) {
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        return queryPlanner != null && hasStage(queryPlanner.get("winningPlan"), stage);
+    }
+    private static boolean hasStage(Object plan, String stage) {
+        if (plan instanceof List) {
+            for (Object inputPlan : (List<?>) plan)
+                if (hasStage(inputPlan, stage))
+                    return true;
+            return false;
         }
-        values.add(partLog.trim());
-        return values;
+        if (!(plan instanceof Document))
+            return false;
+        Document document = (Document) plan;
+        return stage.equals(document.getString("stage"))
+                || hasStage(document.get("inputStage"), stage)
+                || hasStage(document.get("inputStages"), stage);
     }
+    //endregion
 
-    public FindIterable<Document> findIpsByUrl(String url) {
-        return collection.find(eq("url", url)).sort(descending("ip")).
-                projection(fields(include("ip"), excludeId()));
+    /**
+     * Reports are built by aggregation pipelines and returned inline,
+     * limit restricts the result to top N documents, 0 means no limit
+     */
+    public MongoIterable<Document> findUrlsCount() {
+        return findUrlsCount(0);
     }
-    public FindIterable<Document> findUrlsOfIp(String ip) {
-        return collection.find(eq("ip", ip)).sort(descending("url")).
-                projection(fields(include("url"), excludeId()));
+    public MongoIterable<Document> findUrlsCount(int limit) {
+        return cached("findUrlsCount", () -> {
+            LogRollups rollups = this.rollups;
+            if (rollups != null)
+                return rollups.findUrlsCount(limit);
+            LogRetention retention = this.retention;
+            return retention != null ? retention.urlsCount(limit) : aggregate(LogReports.urlsCount(limit), null, null);
+        }, limit);
     }
-    public FindIterable<Document> findUrlsInTime(String dateTime1, String dateTime2) {
-        try {
-            Date date1 = getDateTime(dateTime1);
-            Date date2 = getDateTime(dateTime2);
-            SimpleDateFormat parser = new SimpleDateFormat("EEE MMM d HH:mm:ss zzz yyyy", Locale.ENGLISH);
-            return collection.find(and(gt("datetime", parser.parse(date1.toString())),
-                                        lt("datetime",  parser.parse(date2.toString())))).
-                    projection(fields(include("url"), excludeId())).sort(descending("url"));
-        }
-        catch (ParseException e) {
-            return null;
+    public MongoIterable<Document> findUrlsDuration() {
+        return findUrlsDuration(0);
+    }
+    public MongoIterable<Document> findUrlsDuration(int limit) {
+        return cached("findUrlsDuration", () -> {
+            LogRollups rollups = this.rollups;
+            if (rollups != null)
+                return rollups.findUrlsDuration(limit);
+            LogRetention retention = this.retention;
+            return retention != null ? retention.urlsDuration(limit)
+                    : aggregate(LogReports.urlsDuration(limit), null, null);
+        }, limit);
+    }
+    public MongoIterable<Document> findIdsDurationCount() {
+        return findIdsDurationCount(0);
+    }
+    public MongoIterable<Document> findIdsDurationCount(int limit) {
+        return cached("findIdsDurationCount", () -> {
+            LogRollups rollups = this.rollups;
+            if (rollups != null)
+                return rollups.findIdsDurationCount(limit);
+            LogRetention retention = this.retention;
+            return retention != null ? retention.ipsDurationCount(limit)
+                    : aggregate(LogReports.ipsDurationCount(limit), null, null);
+        }, limit);
+    }
+    public MongoIterable<Document> findUrlsCountByTime(String dateTime1, String dateTime2) {
+        return findUrlsCountByTime(getDateTime(dateTime1), getDateTime(dateTime2));
+    }
+    public MongoIterable<Document> findUrlsCountByTime(Date dateTime1, Date dateTime2) {
+        return findUrlsCountByTime(dateTime1, dateTime2, 0);
+    }
+    public MongoIterable<Document> findUrlsCountByTime(Date dateTime1, Date dateTime2, int limit) {
+        return cached("findUrlsCountByTime", () -> countByTime("url", dateTime1, dateTime2, limit),
+                dateTime1, dateTime2, limit);
+    }
+    public MongoIterable<Document> findIpsCountByTime(String dateTime1, String dateTime2) {
+        return findIpsCountByTime(getDateTime(dateTime1), getDateTime(dateTime2), 0);
+    }
+    public MongoIterable<Document> findIpsCountByTime(Date dateTime1, Date dateTime2, int limit) {
+        return cached("findIpsCountByTime", () -> countByTime("ip", dateTime1, dateTime2, limit),
+                dateTime1, dateTime2, limit);
+    }
+    /**
+     * Reads retention tiers if raw logs of the window have expired, partitions the window if enabled
+     * @param field url or ip
+     */
+    private MongoIterable<Document> countByTime(String field, Date dateTime1, Date dateTime2, int limit) {
+        BiFunction<Date, Date, MongoIterable<Document>> query = (partition1, partition2) ->
+                aggregate(LogReports.countByTime(field, partition1, partition2, 0), partition1, partition2);
+        TimePartitions partitions = this.partitions;
+        LogRetention retention = this.retention;
+        if (retention != null) {
+            MongoIterable<Document> tiers = retention.countByTime(field, dateTime1, dateTime2, limit,
+                    partitions == null ? query : (from, to) -> partitions.reportCounts(from, to, 0, query));
+            if (tiers != null)
+                return tiers;
         }
+        if (partitions != null)
+            return partitions.reportCounts(dateTime1, dateTime2, limit, query);
+        return aggregate(LogReports.countByTime(field, dateTime1, dateTime2, limit), dateTime1, dateTime2);
+    }
+    /**
+     * Reads hourly rollups, requires rollups enabled with hourly buckets
+     * @return visits of urls in hours starting in [dateTime1, dateTime2), dateTime1 is rounded down to the hour
+     */
+    public MongoIterable<Document> findUrlsCountByHour(Date dateTime1, Date dateTime2, int limit) {
+        LogRollups rollups = requireRollups();
+        return cached("findUrlsCountByHour", () -> rollups.findUrlsCountByHour(dateTime1, dateTime2, limit),
+                dateTime1, dateTime2, limit);
+    }
+
+    private AggregateIterable<Document> aggregate(List<Bson> pipeline, Date dateTime1, Date dateTime2) {
+        LogStore store = this.store;
+        AggregateIterable<Document> result = store != null ? store.report(pipeline, dateTime1, dateTime2)
+                : collection.aggregate(pipeline);
+        return result.allowDiskUse(allowDiskUse);
     }
 
-    public FindIterable<Document> findUrlsCount() {
-        String collectionName = "urls_count";
-        String map = "function (){ emit(this.url, 1); }";
-        String reduce = "function(key, values) {" + "var count = 0;"
-                + "for (var i in values) {"
-                + "count += values[i]; }"
-                + "return count; }";
-        collection.mapReduce(map, reduce).collectionName(collectionName).toCollection();
-        return database.getCollection(collectionName).find().sort(descending("value"));
-    }
-    public FindIterable<Document> findUrlsDuration() {
-        String collectionName = "urls_duration";
-        String map = "function (){ emit(this.url, this.duration); }";
-        String reduce = "function(key, values) {" + "var duration = 0;"
-                + "for (var i in values) {"
-                + "duration += values[i]; }"
-                + "return duration; }";
-        collection.mapReduce(map, reduce).collectionName(collectionName).toCollection();
-        return database.getCollection(collectionName).find().sort(descending("value"));
-    }
-    public FindIterable<Document> findIdsDurationCount() {
-        String collectionName = "ips_count_duration";
-        String map = "function (){ emit(this.ip, {count:1, duration:this.duration}); }";
-        String reduce = "function(key, values) {"
-                + "var count = 0; var duration = 0;"
-                + "for (var i in values) {"
-                + "count += values[i].count;"
-                + "duration += values[i].duration;}"
-                + "return {count:count, duration:duration}; }";
-        collection.mapReduce(map, reduce).collectionName(collectionName).toCollection();
-        return database.getCollection(collectionName).find().sort(descending("count", "duration"));
-    }
-    public FindIterable<Document> findUrlsCountByTime(String dateTime1, String dateTime2) {
-        String collectionName = "urls_count_date";
-        String map = "function () {"
-                + "if (this.datetime > ISODate"
-                + "(\"" + dateTime1 + "\")"
-                + " && this.datetime < ISODate"
-                + "(\"" + dateTime2 + "\"))"
-                + " emit(this.url, 1); }";
-        String reduce = "function(key, values) { return Array.sum(values); }";
-        collection.mapReduce(map, reduce).collectionName(collectionName).toCollection();
-        return database.getCollection(collectionName).find().sort(descending("value"));
+    /**
+     * Runs the query through the cache if it is enabled, query time is passed to metrics
+     */
+    private MongoIterable<Document> cached(String method, Supplier<MongoIterable<Document>> query, Object... args) {
+        Supplier<MongoIterable<Document>> timedQuery = () -> timed(method, query.get());
+        QueryCache cache = this.cache;
+        return cache == null ? timedQuery.get() : cache.get(method, Arrays.asList(args), timedQuery);
+    }
+    private <T> MongoIterable<T> timed(String method, MongoIterable<T> results) {
+        LogMetrics metrics = this.metrics;
+        return metrics == LogMetrics.NONE ? results : new TimedIterable<>(results, method, metrics);
+    }
+    /**
+     * Removes cached results of url and ip lookups and time windows affected by inserted logs.
+     * Reports over all logs are refreshed by ttl only
+     */
+    private void invalidateCache(List<LogRecord> inserted) {
+        QueryCache cache = this.cache;
+        if (cache == null || inserted.isEmpty())
+            return;
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (LogRecord record : inserted) {
+            cache.invalidate("findIpsByUrl", record.getUrl());
+            cache.invalidate("findUrlsOfIp", record.getIp());
+            long dateTime = record.getDatetime();
+            first = Math.min(first, dateTime);
+            last = Math.max(last, dateTime);
+        }
+        long firstInserted = first, lastInserted = last;
+        Predicate<List<Object>> overlaps = args -> ((Date) args.get(0)).getTime() <= lastInserted
+                && ((Date) args.get(1)).getTime() > firstInserted;
+        cache.invalidate("findUrlsInTime", overlaps);
+        cache.invalidate("findUrlsCountByTime", overlaps);
+        cache.invalidate("findIpsCountByTime", overlaps);
+        // hourly rollups are read from the hour of dateTime1
+        cache.invalidate("findUrlsCountByHour", args -> {
+            long dateTime1 = ((Date) args.get(0)).getTime();
+            return dateTime1 - Math.floorMod(dateTime1, HOUR) <= lastInserted
+                    && ((Date) args.get(1)).getTime() > firstInserted;
+        });
     }
 }
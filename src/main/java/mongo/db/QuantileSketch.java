@@ -0,0 +1,95 @@
+package mongo.db;
+
+import org.bson.*;
+import java.util.*;
+
+
+/**
+ * Quantiles of positive values with relative error within {@link #RELATIVE_ACCURACY}:
+ * values are counted in buckets which bounds grow geometrically,
+ * a quantile is the middle of its bucket
+ */
+class QuantileSketch {
+    static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    /**
+     * Buckets cover values from about 1e-9 to 1e17, smaller values are counted as zeros
+     */
+    private static final int MIN_INDEX = -1040;
+    private static final int MAX_INDEX = 1960;
+    private static final double MIN_VALUE = Math.pow(GAMMA, MIN_INDEX);
+
+    private final long[] counts = new long[MAX_INDEX - MIN_INDEX + 1];
+    private long zeros;
+    private long total;
+
+    void add(double value) {
+        total++;
+        if (value < MIN_VALUE) {
+            zeros++;
+            return;
+        }
+        int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+        counts[Math.min(index, MAX_INDEX) - MIN_INDEX]++;
+    }
+
+    void merge(QuantileSketch other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        zeros += other.zeros;
+        total += other.total;
+    }
+
+    long getCount() {
+        return total;
+    }
+
+    /**
+     * @param quantile from 0 to 1
+     * @return value of the quantile, NaN if the sketch is empty
+     */
+    double quantile(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("quantile must be from 0 to 1");
+        if (total == 0)
+            return Double.NaN;
+        long rank = (long) (quantile * (total - 1));
+        long seen = zeros;
+        if (seen > rank)
+            return 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank)
+                return 2 * Math.pow(GAMMA, i + MIN_INDEX) / (GAMMA + 1);
+        }
+        return 2 * Math.pow(GAMMA, MAX_INDEX) / (GAMMA + 1);
+    }
+
+    /**
+     * Only not empty buckets are stored
+     */
+    Document toDocument() {
+        List<Integer> indexes = new ArrayList<>();
+        List<Long> bucketCounts = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++)
+            if (counts[i] != 0) {
+                indexes.add(i + MIN_INDEX);
+                bucketCounts.add(counts[i]);
+            }
+        return new Document("zeros", zeros).append("indexes", indexes).append("counts", bucketCounts);
+    }
+    static QuantileSketch fromDocument(Document document) {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.zeros = document.getLong("zeros");
+        sketch.total = sketch.zeros;
+        List<?> indexes = (List<?>) document.get("indexes");
+        List<?> bucketCounts = (List<?>) document.get("counts");
+        for (int i = 0; i < indexes.size(); i++) {
+            long count = ((Number) bucketCounts.get(i)).longValue();
+            sketch.counts[((Number) indexes.get(i)).intValue() - MIN_INDEX] += count;
+            sketch.total += count;
+        }
+        return sketch;
+    }
+}
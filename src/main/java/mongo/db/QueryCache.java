@@ -0,0 +1,170 @@
+package mongo.db;
+
+import com.mongodb.client.*;
+import org.bson.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.*;
+
+
+/**
+ * Bounded cache of query results keyed by query method and its arguments.
+ * The least recently used entry is evicted when the cache is full,
+ * entries older than ttl are treated as missing.
+ * Cached documents are shared by callers and must not be modified
+ */
+public class QueryCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<Key, CachedResults> entries;
+    /**
+     * Queries running now, an invalidation of a key marks its loads stale
+     */
+    private final List<Load> loads = new ArrayList<>();
+    private long hits, misses, evictions;
+
+    public QueryCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("max entries must be positive");
+        this.maxEntries = maxEntries;
+        ttlNanos = unit.toNanos(ttl);
+        entries = new LinkedHashMap<Key, CachedResults>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResults> eldest) {
+                if (size() <= QueryCache.this.maxEntries)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param method name of query method
+     * @param args arguments of query method
+     * @param query runs the query when results aren't cached
+     * @return cached or loaded results
+     */
+    MongoIterable<Document> get(String method, List<Object> args, Supplier<MongoIterable<Document>> query) {
+        Key key = new Key(method, args);
+        Load load = new Load(key);
+        synchronized (this) {
+            CachedResults entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.loadedAt < ttlNanos) {
+                hits++;
+                return entry.results;
+            }
+            if (entry != null)
+                entries.remove(key);
+            misses++;
+            loads.add(load);
+        }
+        ListIterable<Document> results;
+        try {
+            results = new ListIterable<>(query.get().into(new ArrayList<>()));
+        }
+        finally {
+            synchronized (this) {
+                loads.remove(load);
+            }
+        }
+        synchronized (this) {
+            if (!load.stale)
+                entries.put(key, new CachedResults(results));
+        }
+        return results;
+    }
+
+    /**
+     * Removes results of a query method called with one argument.
+     * Results of the same query running meanwhile aren't cached, its key isn't in the cache yet
+     */
+    synchronized void invalidate(String method, Object arg) {
+        Key invalidated = new Key(method, Collections.singletonList(arg));
+        entries.remove(invalidated);
+        for (Load load : loads)
+            if (load.key.equals(invalidated))
+                load.stale = true;
+    }
+    /**
+     * Removes results of a query method which arguments match the predicate,
+     * results of matching queries running meanwhile aren't cached
+     */
+    synchronized void invalidate(String method, Predicate<List<Object>> args) {
+        Predicate<Key> matches = key -> key.method.equals(method) && args.test(key.args);
+        entries.keySet().removeIf(matches);
+        for (Load load : loads)
+            if (matches.test(load.key))
+                load.stale = true;
+    }
+    public synchronized void clear() {
+        entries.clear();
+        for (Load load : loads)
+            load.stale = true;
+    }
+
+    //region Statistics
+    public synchronized int size() {
+        return entries.size();
+    }
+    public synchronized long getHits() {
+        return hits;
+    }
+    public synchronized long getMisses() {
+        return misses;
+    }
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+    public synchronized void resetStatistics() {
+        hits = misses = evictions = 0;
+    }
+    @Override
+    public synchronized String toString() {
+        return "entries: " + entries.size() + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+    //endregion
+
+    private static class Key {
+        private final String method;
+        private final List<Object> args;
+
+        Key(String method, List<Object> args) {
+            this.method = method;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return method.equals(key.method) && args.equals(key.args);
+        }
+        @Override
+        public int hashCode() {
+            return 31 * method.hashCode() + args.hashCode();
+        }
+    }
+
+    private static class Load {
+        private final Key key;
+        private boolean stale;
+
+        Load(Key key) {
+            this.key = key;
+        }
+    }
+
+    private static class CachedResults {
+        private final ListIterable<Document> results;
+        private final long loadedAt = System.nanoTime();
+
+        CachedResults(ListIterable<Document> results) {
+            this.results = results;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package mongo.db;
+
+import org.bson.*;
+import java.util.*;
+
+
+/**
+ * Space-Saving summary of the most frequent strings in a fixed count of counters.
+ * A new string replaces the string with the least count and inherits its count as error,
+ * so counts are overestimated at most by their error and any string more frequent
+ * than total / capacity is kept
+ */
+class SpaceSaving {
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    /**
+     * Min-heap of counters by count, the root is replaced by new strings
+     */
+    private final List<Counter> heap = new ArrayList<>();
+
+    SpaceSaving(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        counters = new HashMap<>(capacity * 2);
+    }
+
+    void add(String item, long count) {
+        add(item, count, 0);
+    }
+    void merge(SpaceSaving other) {
+        for (Counter counter : other.heap)
+            add(counter.item, counter.count, counter.error);
+    }
+    /**
+     * Counts only grow, so an updated or replaced counter moves down the heap, O(log capacity)
+     */
+    private void add(String item, long count, long error) {
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            counter.count += count;
+            counter.error += error;
+        }
+        else if (heap.size() < capacity) {
+            counter = new Counter(item, count, error, heap.size());
+            counters.put(item, counter);
+            heap.add(counter);
+            siftUp(counter);
+            return;
+        }
+        else {
+            counter = heap.get(0);
+            counters.remove(counter.item);
+            counter.item = item;
+            counter.error = counter.count + error;
+            counter.count += count;
+            counters.put(item, counter);
+        }
+        siftDown(counter);
+    }
+    private void siftUp(Counter counter) {
+        while (counter.index > 0) {
+            Counter parent = heap.get((counter.index - 1) / 2);
+            if (parent.count <= counter.count)
+                break;
+            swap(parent, counter);
+        }
+    }
+    private void siftDown(Counter counter) {
+        while (true) {
+            int child = 2 * counter.index + 1;
+            if (child >= heap.size())
+                break;
+            if (child + 1 < heap.size() && heap.get(child + 1).count < heap.get(child).count)
+                child++;
+            Counter least = heap.get(child);
+            if (counter.count <= least.count)
+                break;
+            swap(counter, least);
+        }
+    }
+    private void swap(Counter a, Counter b) {
+        int index = a.index;
+        a.index = b.index;
+        b.index = index;
+        heap.set(a.index, a);
+        heap.set(b.index, b);
+    }
+
+    /**
+     * @return {_id: string, value: estimated count, error: max overestimation}
+     * ordered by value descending and _id
+     */
+    List<Document> top(int limit) {
+        List<Counter> sorted = new ArrayList<>(heap);
+        sorted.sort((a, b) -> a.count != b.count ? Long.compare(b.count, a.count) : a.item.compareTo(b.item));
+        int count = limit == 0 ? sorted.size() : Math.min(limit, sorted.size());
+        List<Document> top = new ArrayList<>(count);
+        for (Counter counter : sorted.subList(0, count))
+            top.add(new Document("_id", counter.item)
+                    .append("value", (double) counter.count)
+                    .append("error", (double) counter.error));
+        return top;
+    }
+
+    List<Document> toDocuments() {
+        List<Document> documents = new ArrayList<>(heap.size());
+        for (Counter counter : heap)
+            documents.add(new Document("k", counter.item)
+                    .append("c", counter.count)
+                    .append("e", counter.error));
+        return documents;
+    }
+    static SpaceSaving fromDocuments(int capacity, List<Document> documents) {
+        SpaceSaving summary = new SpaceSaving(capacity);
+        for (Document document : documents)
+            summary.add(document.getString("k"), document.getLong("c"), document.getLong("e"));
+        return summary;
+    }
+
+    private static class Counter {
+        private String item;
+        private long count;
+        private long error;
+        private int index;
+
+        private Counter(String item, long count, long error, int index) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package mongo.db;
+
+
+/**
+ * Layout of logs in 'serverlogs' database
+ */
+public enum StorageLayout {
+    /**
+     * One document per log in 'logs' collection
+     */
+    DOCUMENTS,
+    /**
+     * Logs of one url and one hour are packed into arrays of bucket documents
+     * in 'logs_buckets' collection, see {@link BucketedLogStore}
+     */
+    HOURLY_BUCKETS,
+    /**
+     * One document per log in 'logs_compact' collection with ip, url and duration
+     * encoded as numbers, see {@link CompactLogStore}
+     */
+    COMPACT
+}
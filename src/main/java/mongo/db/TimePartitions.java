@@ -0,0 +1,140 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.client.MongoIterable;
+import org.bson.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+
+/**
+ * Runs queries over a time window as queries over partitions of the window,
+ * in parallel on a fixed pool of threads, and merges partition results into
+ * the results of the whole window.
+ * Windows exclude both bounds, so partitions after the first one start 1ms before
+ * their first included time, dates are stored with millisecond precision
+ */
+class TimePartitions implements AutoCloseable {
+    private static final Comparator<String> URL_ORDER = Comparator.nullsFirst(Comparator.<String>naturalOrder());
+    private static final Comparator<Document> URLS_DESCENDING =
+            (a, b) -> URL_ORDER.compare(b.getString("url"), a.getString("url"));
+
+    private final long partitionSize;
+    private final ExecutorService executor;
+
+    /**
+     * @param partitionSize length of partitions
+     * @param threads count of partitions queried at the same time by all callers
+     */
+    TimePartitions(long partitionSize, TimeUnit unit, int threads) {
+        if (partitionSize <= 0)
+            throw new IllegalArgumentException("partition size must be positive");
+        if (threads < 1)
+            throw new IllegalArgumentException("count of threads must be positive");
+        this.partitionSize = unit.toMillis(partitionSize);
+        if (this.partitionSize == 0)
+            throw new IllegalArgumentException("partition size must be at least 1ms");
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "log-partition-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return bounds of partitions, bounds are excluded like bounds of the window
+     */
+    List<Date[]> split(Date dateTime1, Date dateTime2) {
+        List<Date[]> partitions = new ArrayList<>();
+        long start = dateTime1.getTime();
+        long end = dateTime2.getTime();
+        long from = start;
+        do {
+            long to = end - from <= partitionSize ? end : from + partitionSize;
+            partitions.add(new Date[]{new Date(from == start ? from : from - 1), new Date(to)});
+            from = to;
+        }
+        while (from < end);
+        return partitions;
+    }
+
+    /**
+     * Urls of logs in the window sorted like {@link MongoLogHandler#findUrlsInTime(Date, Date)},
+     * cursors of partitions are opened in parallel and merged as they are read, see {@link MergedIterable}
+     * @param query urls of logs in a window sorted by url descending
+     */
+    MongoIterable<Document> findUrlsInTime(Date dateTime1, Date dateTime2,
+                                          BiFunction<Date, Date, MongoIterable<Document>> query) {
+        List<Date[]> partitions = split(dateTime1, dateTime2);
+        if (partitions.size() == 1)
+            return query.apply(dateTime1, dateTime2);
+        List<MongoIterable<Document>> sources = new ArrayList<>(partitions.size());
+        for (Date[] partition : partitions)
+            sources.add(query.apply(partition[0], partition[1]));
+        return new MergedIterable<>(sources, URLS_DESCENDING, executor);
+    }
+    /**
+     * Counts of logs by url or ip in the window sorted like reports,
+     * partitions are queried without limit and values of equal _id are summed
+     * @param query {_id, value: count} of logs in a window for all ids
+     */
+    MongoIterable<Document> reportCounts(Date dateTime1, Date dateTime2, int limit,
+                                            BiFunction<Date, Date, MongoIterable<Document>> query) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        return new LazyIterable<>(() -> sumValues(run(dateTime1, dateTime2, query), limit));
+    }
+
+    private List<List<Document>> run(Date dateTime1, Date dateTime2,
+                                     BiFunction<Date, Date, MongoIterable<Document>> query) {
+        List<Date[]> partitions = split(dateTime1, dateTime2);
+        if (partitions.size() == 1)
+            return Collections.singletonList(query.apply(dateTime1, dateTime2).into(new ArrayList<>()));
+        List<Future<List<Document>>> futures = new ArrayList<>(partitions.size());
+        try {
+            for (Date[] partition : partitions)
+                futures.add(executor.submit(() -> query.apply(partition[0], partition[1]).into(new ArrayList<>())));
+            List<List<Document>> results = new ArrayList<>(partitions.size());
+            for (Future<List<Document>> future : futures)
+                results.add(future.get());
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoInterruptedException("partitioned query was interrupted", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new MongoException("partition query failed", e.getCause());
+        }
+        finally {
+            for (Future<List<Document>> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Sums values of equal _id and sorts by value descending and _id
+     */
+    static List<Document> sumValues(List<List<Document>> partitions, int limit) {
+        Map<String, Double> sums = new HashMap<>();
+        for (List<Document> partition : partitions)
+            for (Document document : partition)
+                sums.merge(document.getString("_id"), ((Number) document.get("value")).doubleValue(), Double::sum);
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(sums.entrySet());
+        entries.sort(Map.Entry.<String, Double>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey(URL_ORDER)));
+        int count = limit == 0 ? entries.size() : Math.min(limit, entries.size());
+        List<Document> results = new ArrayList<>(count);
+        for (Map.Entry<String, Double> entry : entries.subList(0, count))
+            results.add(new Document("_id", entry.getKey()).append("value", entry.getValue()));
+        return results;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
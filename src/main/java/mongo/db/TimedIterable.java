@@ -0,0 +1,121 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.client.*;
+import java.util.*;
+
+
+/**
+ * Passes query time of wrapped results to metrics.
+ * Queries run when results are read, so the time is measured from the start of reading
+ * until all results are read or the cursor is closed
+ */
+class TimedIterable<T> implements MongoIterable<T> {
+    private final MongoIterable<T> results;
+    private final String method;
+    private final LogMetrics metrics;
+
+    TimedIterable(MongoIterable<T> results, String method, LogMetrics metrics) {
+        this.results = results;
+        this.method = method;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public MongoCursor<T> iterator() {
+        long start = start();
+        MongoCursor<T> cursor;
+        try {
+            cursor = results.iterator();
+        }
+        catch (RuntimeException e) {
+            finish(start);
+            throw e;
+        }
+        return new MongoCursor<T>() {
+            private boolean finished;
+
+            @Override
+            public void close() {
+                cursor.close();
+                finishOnce();
+            }
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = cursor.hasNext();
+                if (!hasNext)
+                    finishOnce();
+                return hasNext;
+            }
+            @Override
+            public T next() {
+                return cursor.next();
+            }
+            @Override
+            public T tryNext() {
+                return cursor.tryNext();
+            }
+            @Override
+            public ServerCursor getServerCursor() {
+                return cursor.getServerCursor();
+            }
+            @Override
+            public ServerAddress getServerAddress() {
+                return cursor.getServerAddress();
+            }
+            private void finishOnce() {
+                if (!finished) {
+                    finished = true;
+                    finish(start);
+                }
+            }
+        };
+    }
+    @Override
+    public T first() {
+        long start = start();
+        try {
+            return results.first();
+        }
+        finally {
+            finish(start);
+        }
+    }
+    @Override
+    public <U> MongoIterable<U> map(Function<T, U> mapper) {
+        return new TimedIterable<>(results.map(mapper), method, metrics);
+    }
+    @Override
+    public void forEach(Block<? super T> block) {
+        long start = start();
+        try {
+            results.forEach(block);
+        }
+        finally {
+            finish(start);
+        }
+    }
+    @Override
+    public <A extends Collection<? super T>> A into(A target) {
+        long start = start();
+        try {
+            return results.into(target);
+        }
+        finally {
+            finish(start);
+        }
+    }
+    @Override
+    public MongoIterable<T> batchSize(int batchSize) {
+        results.batchSize(batchSize);
+        return this;
+    }
+
+    private long start() {
+        metrics.queryStarted(method);
+        return System.nanoTime();
+    }
+    private void finish(long start) {
+        metrics.queryFinished(method, System.nanoTime() - start);
+    }
+}
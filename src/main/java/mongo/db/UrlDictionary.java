@@ -0,0 +1,106 @@
+package mongo.db;
+
+import com.mongodb.*;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Integer ids of urls kept in 'urls' collection as {_id: id, url}.
+ * Ids are taken from the 'urls' counter of 'counters' collection, so several handlers may share the dictionary.
+ * Known ids are cached in memory, the cache grows with count of distinct urls
+ */
+class UrlDictionary {
+    static final String COLLECTION = "urls";
+    static final String COUNTERS_COLLECTION = "counters";
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoCollection<Document> urls;
+    private final MongoCollection<Document> counters;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    UrlDictionary(MongoDatabase database) {
+        urls = database.getCollection(COLLECTION);
+        counters = database.getCollection(COUNTERS_COLLECTION);
+        urls.createIndex(Indexes.ascending("url"), new IndexOptions().unique(true));
+    }
+
+    /**
+     * @return id of the url or null if the url isn't in the dictionary
+     */
+    Integer find(String url) {
+        Integer id = ids.get(url);
+        if (id == null) {
+            Document document = urls.find(eq("url", url)).first();
+            if (document != null) {
+                id = document.getInteger("_id");
+                ids.put(url, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Adds unknown urls to the dictionary
+     * @return ids of all given urls
+     */
+    Map<String, Integer> ids(Collection<String> batchUrls) {
+        Map<String, Integer> batchIds = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        for (String url : batchUrls) {
+            Integer id = ids.get(url);
+            if (id != null)
+                batchIds.put(url, id);
+            else
+                missing.add(url);
+        }
+        if (missing.isEmpty())
+            return batchIds;
+
+        load(missing, batchIds);
+        if (missing.isEmpty())
+            return batchIds;
+
+        int lastId = counters.findOneAndUpdate(eq("_id", COLLECTION), Updates.inc("seq", missing.size()),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)).getInteger("seq");
+        int id = lastId - missing.size();
+        List<Document> added = new ArrayList<>(missing.size());
+        for (String url : missing)
+            added.add(new Document("_id", ++id).append("url", url));
+        try {
+            urls.insertMany(added, new InsertManyOptions().ordered(false));
+        }
+        catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors())
+                if (error.getCode() != DUPLICATE_KEY)
+                    throw e;
+            // other handler added some of urls at the same time, its ids win
+            Set<String> taken = new HashSet<>();
+            for (BulkWriteError error : e.getWriteErrors())
+                taken.add(added.get(error.getIndex()).getString("url"));
+            load(new HashSet<>(taken), batchIds);
+            added.removeIf(document -> taken.contains(document.getString("url")));
+        }
+        for (Document document : added) {
+            ids.put(document.getString("url"), document.getInteger("_id"));
+            batchIds.put(document.getString("url"), document.getInteger("_id"));
+        }
+        return batchIds;
+    }
+    /**
+     * Reads ids of urls from the collection, found urls are removed from missing
+     */
+    private void load(Set<String> missing, Map<String, Integer> batchIds) {
+        for (Document document : urls.find(in("url", missing))) {
+            String url = document.getString("url");
+            ids.put(url, document.getInteger("_id"));
+            batchIds.put(url, document.getInteger("_id"));
+            missing.remove(url);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package test.mongo.db;
+
+import mongo.db.LogGenerator;
+import mongo.db.LogParser;
+import mongo.db.LogRecord;
+import java.security.InvalidParameterException;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+public class LogGeneratorTest {
+    private LogParser parser = new LogParser();
+
+    @Test
+    public void generateValidLogs() {
+        LogGenerator generator = new LogGenerator(100, 1.0, 1000, 2016, 2017, 0, 1);
+        Map<String, Integer> urlCounts = new HashMap<>();
+        Set<String> ips = new HashSet<>();
+        LogRecord record = new LogRecord();
+        for (int i = 0; i < 100_000; i++) {
+            parser.parse(generator.nextLine(), record);
+            urlCounts.merge(record.getUrl(), 1, Integer::sum);
+            ips.add(record.getIp());
+            assertTrue(record.getDuration() >= 0);
+        }
+        assertTrue(urlCounts.size() <= 100);
+        assertTrue(ips.size() <= 1000);
+        // url of rank 1 is drawn twice as often as url of rank 2 with exponent 1
+        double ratio = (double) urlCounts.get("http://www.example.com/page/0") / urlCounts.get("http://www.example.com/page/1");
+        assertEquals(2, ratio, 0.2);
+    }
+    @Test
+    public void generateInvalidRatio() {
+        LogGenerator generator = new LogGenerator(100, 1.0, 1000, 2000, 2017, 0.1, 1);
+        int invalid = 0;
+        for (int i = 0; i < 100_000; i++) {
+            try {
+                parser.parse(generator.nextLine(), new LogRecord());
+            }
+            catch (InvalidParameterException e) {
+                invalid++;
+            }
+        }
+        assertEquals(10_000, invalid, 500);
+    }
+    @Test
+    public void repeatWithSeed() {
+        assertArrayEquals(new LogGenerator(10, 1.5, 10, 2000, 2017, 0.5, 7).lines(100).toArray(),
+                new LogGenerator(10, 1.5, 10, 2000, 2017, 0.5, 7).lines(100).toArray());
+    }
+}
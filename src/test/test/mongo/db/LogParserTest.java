@@ -0,0 +1,60 @@
+package test.mongo.db;
+
+import mongo.db.LogParser;
+import mongo.db.LogRecord;
+import java.security.InvalidParameterException;
+import java.time.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+public class LogParserTest {
+    private LogParser parser = new LogParser();
+
+    @Test
+    public void parseInAnyOrder() {
+        LogRecord record = parser.parse("https://drive.google.com/drive, 12, 2017-09-04T5:10:04, 02.66.01.00", new LogRecord());
+        assertEquals("02.66.01.00", record.getIp());
+        assertEquals("https://drive.google.com/drive", record.getUrl());
+        assertEquals(12f, record.getDuration(), 0f);
+        assertEquals(Date.from(LocalDateTime.of(2017, 9, 4, 5, 10, 4).atZone(ZoneId.systemDefault()).toInstant()),
+                record.getDate());
+    }
+    @Test
+    public void parseDurationAsFloat() {
+        LogRecord record = new LogRecord();
+        for (String duration : new String[] {"4.7", "50.9", "2.1", "0.000001", "16777217", "1e3", "-3.25"}) {
+            parser.parse("1.2.3.4, 2017-10-23T15:45:18, " + duration + ", a.com", record);
+            assertEquals(Float.parseFloat(duration), record.getDuration(), 0f);
+        }
+    }
+    @Test
+    public void reuseRecord() {
+        LogRecord record = new LogRecord();
+        parser.parse("43.13.111.66, 2017-10-31T21:33:06, 10, stackoverflow.com/questions", record);
+        parser.parse("123.43.2.8, 2017-10-26T09:09:51, 2.1, www.tutorialspoint.com/mongodb", record);
+        assertEquals("123.43.2.8", record.getIp());
+        assertEquals("www.tutorialspoint.com/mongodb", record.getUrl());
+        assertEquals(2.1f, record.getDuration(), 0f);
+    }
+    @Test
+    public void rejectIncorrectLogs() {
+        Map<String, String> incorrectLogs = new HashMap<>();
+        incorrectLogs.put("1.2.3.4, 2017-10-31T21:33:06, 10, a.com, b.com", "not enough values");
+        incorrectLogs.put("1.2.3.4, 2018-10-31T21:33:06, 10, a.com", "incorrect value");
+        incorrectLogs.put("1.2.3.4, 2017-13-31T21:33:06, 10, a.com", "incorrect value");
+        incorrectLogs.put("1.2.3.4, 2017-10-31T24:33:06, 10, a.com", "incorrect value");
+        incorrectLogs.put("1.2.3.4, 2017-10-31T21:33:06, 10, a com", "incorrect value");
+        incorrectLogs.put("1.2.3.4, 2017-10-31T21:33:06, 10, /", "incorrect value");
+        for (String log : incorrectLogs.keySet()) {
+            try {
+                parser.parse(log, new LogRecord());
+                fail(log);
+            }
+            catch (InvalidParameterException ex) {
+                assertEquals(incorrectLogs.get(log), ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package test.mongo.db;
+
+import mongo.db.AsyncMongoLogHandler;
+import mongo.db.IngestResult;
+import mongo.db.MongoLogHandler;
+import com.mongodb.client.*;
+import static com.mongodb.client.model.Filters.*;
+import org.bson.Document;
+import java.security.InvalidParameterException;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.assertj.core.api.Assertions.*;
+
+
+public class MongoLogHandlerConcurrencyTest {
+    private static final String URL_PREFIX = "https://github.com/NataPrivate/DB_Lab2/concurrency/";
+    private static final int THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    private static MongoLogHandler handler;
+
+    @BeforeClass
+    public static void init() {
+        handler = new MongoLogHandler();
+    }
+    @AfterClass
+    public static void finish() {
+        handler.getCollection().deleteMany(regex("url", "^" + URL_PREFIX));
+        handler.close();
+    }
+
+    @Test
+    public void insertLogsFromManyThreads() throws Exception {
+        int logsPerThread = 200;
+        runInThreads(THREADS, thread -> {
+            for (int i = 0; i < logsPerThread; i++)
+                handler.insertLog("10.0.0." + thread + ", 2017-10-23T15:45:" + (i % 60) + ", " + thread
+                        + ", " + URL_PREFIX + thread);
+        });
+
+        MongoCollection<Document> collection = handler.getCollection();
+        for (int thread = 0; thread < THREADS; thread++) {
+            String url = URL_PREFIX + thread;
+            assertThat(collection.count(eq("url", url))).isEqualTo(logsPerThread);
+            for (Document document : collection.find(eq("url", url))) {
+                assertEquals("10.0.0." + thread, document.getString("ip"));
+                assertEquals(thread, document.getDouble("duration"), 0);
+            }
+        }
+    }
+
+    @Test
+    public void insertLogsAsynchronously() throws Exception {
+        AsyncMongoLogHandler asyncHandler = new AsyncMongoLogHandler(16);
+        asyncHandler.setBatchSize(100);
+        try {
+            String url = URL_PREFIX + "async";
+            List<CompletableFuture<Void>> inserts = new ArrayList<>();
+            for (int i = 0; i < 500; i++)
+                inserts.add(asyncHandler.insertLog("10.1.0." + (i & 0xFF) + ", 2017-10-23T15:45:18, 1, " + url));
+            CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+
+            List<String> logs = new ArrayList<>();
+            for (int i = 0; i < 1000; i++)
+                logs.add(i % 10 == 0 ? "incorrect log" : "10.2.0." + (i & 0xFF) + ", 2017-10-23T15:45:18, 1, " + url);
+            IngestResult result = asyncHandler.insertLogs(logs).get(1, TimeUnit.MINUTES);
+            assertEquals(900, result.getInsertedCount());
+            assertEquals(100, result.getRejectedCount());
+            assertEquals(1, result.getRejections().get(0).getLineNumber());
+
+            assertThat(asyncHandler.findIpsByUrl(url).get(1, TimeUnit.MINUTES)).hasSize(1400);
+            assertEquals(16, asyncHandler.getAvailableSlots());
+            try {
+                asyncHandler.insertLog("incorrect log").get();
+                fail();
+            }
+            catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(InvalidParameterException.class);
+            }
+        }
+        finally {
+            asyncHandler.close();
+        }
+    }
+
+    @Test
+    public void chainAsynchronousOperationsWhenSaturated() throws Exception {
+        AsyncMongoLogHandler asyncHandler = new AsyncMongoLogHandler("localhost", 27017, "serverlogs", 1);
+        try {
+            String url = URL_PREFIX + "chained";
+            List<CompletableFuture<Void>> chains = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String log = "10.3.0." + i + ", 2017-10-23T15:45:18, 1, " + url;
+                chains.add(asyncHandler.insertLog(log).thenCompose(done -> asyncHandler.insertLog(log)));
+            }
+            // second inserts are sent from callbacks while the only slot is taken
+            CompletableFuture.allOf(chains.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+            assertThat(asyncHandler.findIpsByUrl(url).get(1, TimeUnit.MINUTES)).hasSize(40);
+            assertEquals(1, asyncHandler.getAvailableSlots());
+            assertEquals(0, asyncHandler.getQueuedCount());
+        }
+        finally {
+            asyncHandler.close();
+        }
+    }
+    @Test
+    public void rejectOperationsOverQueueLimit() throws Exception {
+        AsyncMongoLogHandler asyncHandler = new AsyncMongoLogHandler("localhost", 27017, "serverlogs", 1);
+        asyncHandler.setMaxQueued(1);
+        try {
+            String url = URL_PREFIX + "rejected";
+            List<CompletableFuture<Void>> inserts = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+                inserts.add(asyncHandler.insertLog("10.4.0." + i + ", 2017-10-23T15:45:18, 1, " + url));
+            int rejected = 0;
+            for (CompletableFuture<Void> insert : inserts) {
+                try {
+                    insert.get(1, TimeUnit.MINUTES);
+                }
+                catch (ExecutionException e) {
+                    assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+                    rejected++;
+                }
+            }
+            assertThat(rejected).isPositive();
+            assertThat(asyncHandler.findIpsByUrl(url).get(1, TimeUnit.MINUTES)).hasSize(20 - rejected);
+            assertEquals(0, asyncHandler.getQueuedCount());
+        }
+        finally {
+            asyncHandler.close();
+        }
+    }
+
+    /**
+     * Scaling of validation is measured by ParsingBenchmark.isValidShared, timings aren't checked here
+     */
+    @Test
+    public void validateLogsFromManyThreads() throws Exception {
+        int logsPerThread = 100_000;
+        runInThreads(THREADS, thread -> {
+            for (int i = 0; i < logsPerThread; i++) {
+                String month = i % 2 == 0 ? "10" : "13";
+                String log = "123.23.13." + (i & 0xFF) + ", 2017-" + month + "-23T15:45:18, 4.7, " + URL_PREFIX + thread;
+                if (i % 2 == 0)
+                    assertTrue(handler.isValid(log));
+                else
+                    assertThatThrownBy(() -> handler.isValid(log))
+                            .isInstanceOf(InvalidParameterException.class).hasMessage("incorrect value");
+            }
+        });
+    }
+
+    private void runInThreads(int threads, ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            int number = thread;
+            futures.add(executor.submit(() -> {
+                barrier.await();
+                task.run(number);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+    }
+
+    private interface ThreadTask {
+        void run(int thread) throws Exception;
+    }
+}
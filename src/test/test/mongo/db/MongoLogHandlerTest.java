@@ -1,13 +1,27 @@
 package test.mongo.db;
 
+import mongo.db.DefaultLogMetrics;
+import mongo.db.IngestResult;
+import mongo.db.LogFileIngester;
+import mongo.db.LogPage;
+import mongo.db.LogParser;
+import mongo.db.LogRecord;
+import mongo.db.LogSketches;
+import mongo.db.LogTailer;
 import mongo.db.MongoLogHandler;
+import mongo.db.QueryCache;
+import mongo.db.StorageLayout;
 import com.mongodb.*;
 import com.mongodb.client.*;
+import com.mongodb.client.model.Indexes;
 import static com.mongodb.client.model.Filters.*;
 import org.bson.Document;
+import java.nio.file.*;
 import java.security.InvalidParameterException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.*;
 import org.junit.*;
 import static org.junit.Assert.*;
 import static org.assertj.core.api.Assertions.*;
@@ -18,19 +32,22 @@ public class MongoLogHandlerTest {
     private MongoDatabase testDatabase = new MongoClient("localhost", 27017).getDatabase("serverlogs");
     private MongoCollection<Document> collection = testDatabase.getCollection("logs");
     private static Map<String, String> incorrectLogs, correctLogs;
+    private static final List<String> initialLogs = Arrays.asList(
+            "43.13.111.66, 2017-10-31T21:33:06, 10, stackoverflow.com/questions/3778428/best-way-to-store-date-time-in-mongodb",
+            "123.43.2.8, 2017-10-26T09:09:51, 2.1, www.tutorialspoint.com/mongodb/mongodb_query_document.htm",
+            "123.23.13.2, 2017-10-15T11:50:08, 20, www.tutorialspoint.com/mongodb/mongodb_java.htm",
+            "9.13.77.62, 2017-10-23T14:22:10, 4.3, http://www.stijit.com/web-tips/dry-kiss-solid-yagni",
+            "123.23.13.2, 2017-10-23T15:41:18, 7, http://www.stijit.com/web-tips/dry-kiss-solid-yagni",
+            "123.23.13.2, 2017-10-23T15:45:18, 4.7, www.tutorialspoint.com/mongodb/mongodb_java.htm",
+            "223.23.13.2, 2017-11-03T10:00:28, 46, www.tutorialspoint.com/mongodb/mongodb_java.htm",
+            "123.23.13.2, 2017-10-23T15:45:18, 4.7, www.tutorialspoint.com/mongodb/mongodb_java.htm",
+            "123.23.13.2, 2017-10-23T15:45:18, 4.7, www.tutorialspoint.com/mongodb/mongodb_java.htm");
 
     @BeforeClass
     public static void init() {
         MongoLogHandler handler = new MongoLogHandler();
-        handler.insertLog("43.13.111.66, 2017-10-31T21:33:06, 10, stackoverflow.com/questions/3778428/best-way-to-store-date-time-in-mongodb");
-        handler.insertLog("123.43.2.8, 2017-10-26T09:09:51, 2.1, www.tutorialspoint.com/mongodb/mongodb_query_document.htm");
-        handler.insertLog("123.23.13.2, 2017-10-15T11:50:08, 20, www.tutorialspoint.com/mongodb/mongodb_java.htm");
-        handler.insertLog("9.13.77.62, 2017-10-23T14:22:10, 4.3, http://www.stijit.com/web-tips/dry-kiss-solid-yagni");
-        handler.insertLog("123.23.13.2, 2017-10-23T15:41:18, 7, http://www.stijit.com/web-tips/dry-kiss-solid-yagni");
-        handler.insertLog("123.23.13.2, 2017-10-23T15:45:18, 4.7, www.tutorialspoint.com/mongodb/mongodb_java.htm");
-        handler.insertLog("223.23.13.2, 2017-11-03T10:00:28, 46, www.tutorialspoint.com/mongodb/mongodb_java.htm");
-        handler.insertLog("123.23.13.2, 2017-10-23T15:45:18, 4.7, www.tutorialspoint.com/mongodb/mongodb_java.htm");
-        handler.insertLog("123.23.13.2, 2017-10-23T15:45:18, 4.7, www.tutorialspoint.com/mongodb/mongodb_java.htm");
+        for (String log : initialLogs)
+            handler.insertLog(log);
         handler.close();
 
         initLogs();
@@ -96,6 +113,102 @@ public class MongoLogHandlerTest {
         }
     }
 
+    @Test
+    public void insertLogsInBatches() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2";
+        List<String> logs = Arrays.asList(
+                "111.35.120.105, 2017-3-2T21:22:7, 50.9, " + url,
+                "111.35.120.105, dfhhjhg, 50.9, 111.35.120.105",
+                "111.35.120.106, 2017-3-2T21:22:8, 1, " + url,
+                "111.35.120.105, https://regex101.com, 50.9",
+                "111.35.120.107, 2017-3-2T21:22:9, 2, " + url);
+        long initCount = collection.count();
+        handler.setBatchSize(2);
+        IngestResult result = handler.insertLogs(logs);
+        handler.setBatchSize(1000);
+
+        assertThat(result.getInsertedCount()).isEqualTo(3);
+        assertThat(result.getRejections()).extracting("lineNumber").containsExactly(2L, 4L);
+        assertThat(result.getRejections()).extracting("reason").containsExactly("incorrect value", "not enough values");
+        assertThat(collection.count()).isEqualTo(initCount + 3);
+        collection.deleteMany(eq("url", url));
+    }
+    @Test
+    public void insertLogsOnce() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/dedup";
+        List<String> logs = Arrays.asList(
+                "111.35.120.105, 2017-3-2T21:22:7, 50.9, " + url,
+                "  111.35.120.105,2017-03-02T21:22:07, 50.9 , " + url,
+                "111.35.120.106, 2017-3-2T21:22:8, 1, " + url);
+        long initCount = collection.count();
+        handler.enableDeduplication(1000, 1000);
+        try {
+            IngestResult result = handler.insertLogs(logs);
+            assertThat(result.getInsertedCount()).isEqualTo(2);
+            assertThat(result.getDuplicateCount()).isEqualTo(1);
+            assertThat(result.getRejectedCount()).isEqualTo(0);
+
+            result = handler.insertLogs(logs);
+            assertThat(result.getInsertedCount()).isEqualTo(0);
+            assertThat(result.getDuplicateCount()).isEqualTo(3);
+            handler.insertLog(logs.get(2));
+            assertThat(collection.count()).isEqualTo(initCount + 2);
+
+            handler.disableDeduplication();
+            assertThat(handler.enableDeduplication(1000, 1000)).isGreaterThanOrEqualTo(2);
+            assertThat(handler.insertLogs(logs).getDuplicateCount()).isEqualTo(3);
+        }
+        finally {
+            handler.disableDeduplication();
+            collection.deleteMany(eq("url", url));
+        }
+    }
+    @Test
+    public void ingestFile() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/ingest";
+        List<String> logs = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            logs.add(i % 10 == 9 ? "111.35.120.105, dfhhjhg, 50.9, 111.35.120.105"
+                    : "111.35.120." + i + ", 2017-3-2T21:22:7, " + i + ", " + url);
+        Path file = Files.createTempFile("logs", ".csv");
+        Files.write(file, logs);
+        long initCount = collection.count();
+
+        LogFileIngester ingester = new LogFileIngester(handler);
+        ingester.setChunkSize(256);
+        ingester.setParserThreads(3);
+        ingester.setWriterThreads(2);
+        IngestResult result = ingester.ingestFile(file);
+        Files.delete(file);
+
+        assertThat(result.getInsertedCount()).isEqualTo(90);
+        assertThat(result.getRejections()).extracting("lineNumber")
+                .containsOnly(10L, 20L, 30L, 40L, 50L, 60L, 70L, 80L, 90L, 100L);
+        assertThat(collection.count()).isEqualTo(initCount + 90);
+        collection.deleteMany(eq("url", url));
+    }
+    @Test
+    public void ingestMissingFile() throws Exception {
+        assertThatThrownBy(() -> new LogFileIngester(handler).ingestFile(Paths.get("missing-logs.csv")))
+                .isInstanceOf(NoSuchFileException.class);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writerThreadsAlive() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(writerThreadsAlive());
+    }
+    private static boolean writerThreadsAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().startsWith("log-writer-") && thread.isAlive());
+    }
+
+    @Test
+    public void dropSupersededIndexes() throws Exception {
+        collection.createIndex(Indexes.compoundIndex(Indexes.ascending("ip"), Indexes.descending("url")));
+        handler.ensureIndexes();
+        assertThat(collection.listIndexes().into(new ArrayList<>())).extracting(index -> index.getString("name"))
+                .doesNotContain("ip_1_url_-1").contains("ip_1_url_-1__id_1");
+    }
+
     //region Find
     @Test
     public void findIpsByUrl() throws Exception {
@@ -123,8 +236,280 @@ public class MongoLogHandlerTest {
         long actualCount = getActualCount(handler.findUrlsInTime(dateTime1, dateTime2));
         assertEquals(expectedCount, actualCount);
     }
+    @Test
+    public void findQueriesAreCovered() throws Exception {
+        List<Document> explains = Arrays.asList(
+                handler.explainIpsByUrl("http://www.stijit.com/web-tips/dry-kiss-solid-yagni"),
+                handler.explainUrlsOfIp("123.23.13.2"),
+                handler.explainUrlsInTime(handler.getDateTime("2017-10-25T10:45:18"),
+                        handler.getDateTime("2017-11-13T00:00:00")));
+        for (Document explain : explains) {
+            assertTrue(MongoLogHandler.hasStage(explain, "IXSCAN"));
+            assertFalse(MongoLogHandler.hasStage(explain, "COLLSCAN"));
+            assertFalse(MongoLogHandler.hasStage(explain, "FETCH"));
+        }
+    }
+    @Test
+    public void cacheFindResults() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/cache";
+        handler.enableCache(10, 1, TimeUnit.MINUTES);
+        try {
+            handler.insertLog("111.35.120.105, 2017-3-2T21:22:7, 50.9, " + url);
+            assertEquals(1, getActualCount(handler.findIpsByUrl(url)));
+            assertEquals(1, getActualCount(handler.findIpsByUrl(url)));
+            QueryCache cache = handler.getQueryCache();
+            assertThat(cache.getMisses()).isEqualTo(1);
+            assertThat(cache.getHits()).isEqualTo(1);
+
+            handler.insertLog("111.35.120.106, 2017-3-2T21:22:8, 1, " + url);
+            assertEquals(2, getActualCount(handler.findIpsByUrl(url)));
+            assertThat(cache.getMisses()).isEqualTo(2);
+        }
+        finally {
+            handler.disableCache();
+            collection.deleteMany(eq("url", url));
+        }
+    }
+    @Test
+    public void cacheFindResultsDuringOtherInserts() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/cache/find";
+        String otherUrl = "https://github.com/NataPrivate/DB_Lab2/cache/other";
+        handler.enableCache(10, 1, TimeUnit.MINUTES);
+        Thread inserter = new Thread(() -> {
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++)
+                handler.insertLog("111.35." + i / 250 % 250 + "." + i % 250 + ", 2017-3-3T10:22:7, 1, " + otherUrl);
+        });
+        try {
+            handler.insertLog("111.35.120.105, 2017-3-2T21:22:7, 50.9, " + url);
+            inserter.start();
+            for (int i = 0; i < 20; i++)
+                assertEquals(1, getActualCount(handler.findIpsByUrl(url)));
+            QueryCache cache = handler.getQueryCache();
+            assertThat(cache.getMisses()).isEqualTo(1);
+            assertThat(cache.getHits()).isEqualTo(19);
+        }
+        finally {
+            inserter.interrupt();
+            inserter.join();
+            handler.disableCache();
+            collection.deleteMany(in("url", url, otherUrl));
+        }
+    }
+    @Test
+    public void cacheHourlyCounts() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/cache/hourly";
+        Date dateTime1 = handler.getDateTime("2017-10-23T15:30:00");
+        Date dateTime2 = handler.getDateTime("2017-10-23T16:00:00");
+        handler.enableRollups(true);
+        handler.enableCache(10, 1, TimeUnit.MINUTES);
+        try {
+            handler.rebuildRollups();
+            assertThat(toList(handler.findUrlsCountByHour(dateTime1, dateTime2, 0)))
+                    .doesNotContain(new Document("_id", url).append("value", 1.0));
+            // before dateTime1, but in the same hour
+            handler.insertLog("111.35.120.105, 2017-10-23T15:10:00, 3, " + url);
+            assertThat(toList(handler.findUrlsCountByHour(dateTime1, dateTime2, 0)))
+                    .contains(new Document("_id", url).append("value", 1.0));
+            assertThat(handler.getQueryCache().getMisses()).isEqualTo(2);
+        }
+        finally {
+            handler.disableCache();
+            collection.deleteMany(eq("url", url));
+            handler.disableRollups();
+            testDatabase.getCollection("urls_rollup").drop();
+            testDatabase.getCollection("ips_rollup").drop();
+            testDatabase.getCollection("urls_rollup_hourly").drop();
+        }
+    }
     //endregion
-    private long getActualCount(FindIterable<Document> docs) {
+    @Test
+    public void findRecords() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/records";
+        List<String> logs = Arrays.asList(
+                "111.35.120.105, 2017-3-2T21:22:7, 50.9, " + url,
+                "111.35.120.106, 2017-3-2T21:22:8, 1, " + url);
+        try {
+            handler.insertLogs(logs);
+            LogParser parser = new LogParser();
+            List<LogRecord> expected = Arrays.asList(parser.parse(logs.get(1), new LogRecord()),
+                    parser.parse(logs.get(0), new LogRecord()));
+            assertEquals(expected, handler.findRecordsByUrl(url).into(new ArrayList<>()));
+            assertThat(handler.findRecordsOfIp("111.35.120.106").into(new ArrayList<>())).contains(expected.get(0));
+            assertEquals(1, collection.count(and(eq("url", url), eq("duration", 50.900001525878906))));
+        }
+        finally {
+            collection.deleteMany(eq("url", url));
+        }
+    }
+
+    @Test
+    public void streamAndPageUrls() throws Exception {
+        String ip = "111.35.120.107";
+        String url = "https://github.com/NataPrivate/DB_Lab2/pages/";
+        List<String> logs = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            logs.add(ip + ", 2016-3-2T21:22:" + i + ", 1, " + url + (i % 3));
+        try {
+            handler.insertLogs(logs);
+            List<Document> expected = toList(handler.findUrlsOfIp(ip));
+            try (Stream<Document> urls = handler.streamUrlsOfIp(ip, 2)) {
+                assertEquals(expected, urls.collect(Collectors.toList()));
+            }
+
+            List<String> pagedUrls = new ArrayList<>();
+            LogPage page = handler.findUrlsOfIpPage(ip, null, 2);
+            int pages = 1;
+            for (; page.hasNext(); pages++) {
+                page.getDocuments().forEach(document -> pagedUrls.add(document.getString("url")));
+                page = handler.findUrlsOfIpPage(ip, page.getNextKey(), 2);
+            }
+            page.getDocuments().forEach(document -> pagedUrls.add(document.getString("url")));
+            assertEquals(3, pages);
+            assertEquals(expected.stream().map(document -> document.getString("url")).collect(Collectors.toList()),
+                    pagedUrls);
+
+            Date from = handler.getDateTime("2016-3-2T21:22:0");
+            Date to = handler.getDateTime("2016-3-2T21:23:0");
+            LogPage first = handler.findUrlsInTimePage(from, to, null, 3);
+            LogPage second = handler.findUrlsInTimePage(from, to, first.getNextKey(), 3);
+            assertThat(first.getDocuments()).hasSize(3);
+            assertThat(second.getDocuments()).hasSize(1);
+            assertFalse(second.hasNext());
+            assertEquals(url + "1", first.getDocuments().get(0).getString("url"));
+        }
+        finally {
+            collection.deleteMany(eq("ip", ip));
+        }
+    }
+
+    @Test
+    public void followFiles() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/tail";
+        Path directory = Files.createTempDirectory("tail");
+        Path file = directory.resolve("logs.csv");
+        Path checkpoint = directory.resolve("checkpoint");
+        Files.write(file, Arrays.asList("111.35.120.1, 2017-3-2T21:22:7, 1, " + url, "111.35.120.105, dfhhjhg"));
+        long initCount = collection.count();
+        try {
+            try (LogTailer tailer = handler.followFiles(checkpoint, file)) {
+                tailer.setMaxLatency(100, TimeUnit.MILLISECONDS);
+                Files.write(file, Collections.singletonList("111.35.120.2, 2017-3-2T21:22:8, 2, " + url),
+                        StandardOpenOption.APPEND);
+                for (int i = 0; i < 100 && tailer.getInsertedCount() < 2; i++)
+                    Thread.sleep(100);
+                assertThat(tailer.getInsertedCount()).isEqualTo(2);
+                assertThat(tailer.getDuplicateCount()).isEqualTo(0);
+                assertThat(tailer.getRejectedCount()).isEqualTo(1);
+                assertThat(tailer.getOffsets().get(file.toAbsolutePath())).isEqualTo(Files.size(file));
+            }
+            Files.write(file, Collections.singletonList("111.35.120.3, 2017-3-2T21:22:9, 3, " + url),
+                    StandardOpenOption.APPEND);
+            try (LogTailer tailer = handler.followFiles(checkpoint, file)) {
+                for (int i = 0; i < 100 && tailer.getInsertedCount() < 1; i++)
+                    Thread.sleep(100);
+                assertThat(tailer.getInsertedCount()).isEqualTo(1);
+            }
+            assertThat(collection.count()).isEqualTo(initCount + 3);
+        }
+        finally {
+            collection.deleteMany(eq("url", url));
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(path -> path.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+    @Test
+    public void writeBehindSpool() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/spool";
+        List<String> logs = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            logs.add("111.35.120." + i + ", 2017-3-2T21:22:7, " + i + ", " + url);
+        Path directory = Files.createTempDirectory("spool");
+        long initCount = collection.count();
+        handler.enableSpool(directory, 1024);
+        try {
+            assertThat(handler.insertLogs(logs).getInsertedCount()).isEqualTo(100);
+            handler.insertLog("111.35.120.105, 2017-3-2T21:22:7, 1, " + url);
+            assertTrue(handler.getSpool().awaitDrained(30, TimeUnit.SECONDS));
+            assertThat(handler.getSpool().getDrainedCount()).isEqualTo(101);
+            assertThat(collection.count()).isEqualTo(initCount + 101);
+
+            handler.enableSpool(directory, 1024);
+            assertThat(handler.getSpool().getPendingCount()).isEqualTo(0);
+            try (Stream<Path> files = Files.list(directory)) {
+                assertThat(files.count()).isEqualTo(2);
+            }
+        }
+        finally {
+            handler.disableSpool();
+            collection.deleteMany(eq("url", url));
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(file -> file.toFile().delete());
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void approximateStatistics() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/sketches";
+        List<String> logs = new ArrayList<>();
+        for (int i = 0; i < 300; i++)
+            logs.add("10.3." + (i % 100) + ".1, 2017-3-2T21:22:7, " + (i % 10 + 1) + ", " + url + (i % 3 == 0 ? "/a" : "/b"));
+        handler.enableSketches(100, 24, 0, TimeUnit.SECONDS);
+        try {
+            handler.insertLogs(logs);
+            LogSketches sketches = handler.getSketches();
+            assertThat(sketches.countDistinctIps(url + "/b")).isBetween(95L, 105L);
+            assertEquals(url + "/b", sketches.findTopUrls(1).get(0).getString("_id"));
+            assertEquals(200.0, sketches.findTopUrls(1).get(0).getDouble("value"), 0);
+            assertEquals(200.0, sketches.findTopUrls(handler.getDateTime("2017-3-2T21:00:00"),
+                    handler.getDateTime("2017-3-2T22:00:00"), 1).get(0).getDouble("value"), 0);
+            assertEquals(5, sketches.findDurationQuantile(0.5), 0.1);
+
+            handler.disableSketches();
+            handler.enableSketches(100, 24, 0, TimeUnit.SECONDS);
+            assertEquals(url + "/b", handler.getSketches().findTopUrls(1).get(0).getString("_id"));
+            assertThat(handler.getSketches().countDistinctIps(url + "/a")).isBetween(95L, 105L);
+        }
+        finally {
+            handler.disableSketches();
+            testDatabase.getCollection("sketches").drop();
+            testDatabase.getCollection("sketches_urls").drop();
+            collection.deleteMany(regex("url", "^" + url));
+        }
+    }
+
+    @Test
+    public void collectMetrics() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/metrics";
+        DefaultLogMetrics metrics = new DefaultLogMetrics();
+        handler.setMetrics(metrics);
+        try {
+            IngestResult result = handler.insertLogs(Arrays.asList(
+                    "111.35.120.105, 2017-3-2T21:22:7, 50.9, " + url,
+                    "111.35.120.105, 2017-3-2T21:22:7",
+                    "111.35.120.106, 2017-3-2T21:22:8, 1, " + url));
+            assertEquals(2, result.getInsertedCount());
+            assertEquals(2, metrics.getParsedCount());
+            assertEquals(1, metrics.getRejectedCount());
+            assertEquals(Collections.singletonMap("not enough values", 1L), metrics.getRejectedByReason());
+            assertEquals(2, metrics.getInsertedCount());
+            assertEquals(1, metrics.getInsertLatency().getCount());
+            assertEquals(0, metrics.getInsertsInFlight());
+
+            assertEquals(2, getActualCount(handler.findIpsByUrl(url)));
+            assertEquals(1, metrics.getQueryLatencies().get("findIpsByUrl").getCount());
+            assertEquals(0, metrics.getQueriesInFlight());
+        }
+        finally {
+            handler.setMetrics(new DefaultLogMetrics());
+            collection.deleteMany(eq("url", url));
+        }
+    }
+
+    private long getActualCount(MongoIterable<Document> docs) {
         long count = 0;
         Iterator iterator = docs.iterator();
         while (iterator.hasNext() && iterator.next() != null)
@@ -211,13 +596,6 @@ public class MongoLogHandlerTest {
         durationCount.clear();
         idsDurationCount.clear();
         durationCount.put("count", 1.0);
-        durationCount.put("duration", 2.0999999046325684);
-        idsDurationCount.put("_id", "123.43.2.8");
-        idsDurationCount.put("value", new Document(durationCount));
-        docs.add(new Document(idsDurationCount));
-        durationCount.clear();
-        idsDurationCount.clear();
-        durationCount.put("count", 1.0);
         durationCount.put("duration", 46.0);
         idsDurationCount.put("_id", "223.23.13.2");
         idsDurationCount.put("value", new Document(durationCount));
@@ -238,6 +616,13 @@ public class MongoLogHandlerTest {
         docs.add(new Document(idsDurationCount));
         durationCount.clear();
         idsDurationCount.clear();
+        durationCount.put("count", 1.0);
+        durationCount.put("duration", 2.0999999046325684);
+        idsDurationCount.put("_id", "123.43.2.8");
+        idsDurationCount.put("value", new Document(durationCount));
+        docs.add(new Document(idsDurationCount));
+        durationCount.clear();
+        idsDurationCount.clear();
         return docs;
     }
     @Test
@@ -250,6 +635,218 @@ public class MongoLogHandlerTest {
             actualDocs.add(document);
         assertEquals(expectedDocs, actualDocs);
     }
+    @Test
+    public void partitionedQueries() throws Exception {
+        Date dateTime1 = handler.getDateTime("2017-10-15T11:50:08");
+        Date dateTime2 = handler.getDateTime("2017-11-03T10:00:28");
+        List<Document> expectedUrls = handler.findUrlsInTime(dateTime1, dateTime2).into(new ArrayList<>());
+        List<Document> expectedCounts = handler.findUrlsCountByTime(dateTime1, dateTime2, 0).into(new ArrayList<>());
+        List<Document> expectedTop = handler.findUrlsCountByTime(dateTime1, dateTime2, 1).into(new ArrayList<>());
+        handler.enablePartitionedQueries(1, TimeUnit.DAYS, 4);
+        try {
+            assertEquals(expectedUrls, handler.findUrlsInTime(dateTime1, dateTime2).into(new ArrayList<>()));
+            assertEquals(expectedCounts, handler.findUrlsCountByTime(dateTime1, dateTime2, 0).into(new ArrayList<>()));
+            assertEquals(expectedTop, handler.findUrlsCountByTime(dateTime1, dateTime2, 1).into(new ArrayList<>()));
+        }
+        finally {
+            handler.disablePartitionedQueries();
+        }
+    }
+    @Test
+    public void retentionTiers() throws Exception {
+        MongoLogHandler retentionHandler = new MongoLogHandler("localhost", 27017, "serverlogs_retention");
+        long now = System.currentTimeMillis();
+        List<Document> logs = new ArrayList<>();
+        for (int i = 0; i < 30; i++)
+            logs.add(log("111.35.120." + (i % 3), now - TimeUnit.HOURS.toMillis(72 + i),
+                    "https://github.com/NataPrivate/DB_Lab2/" + (i % 5)));
+        logs.add(log("111.35.120.0", now, "https://github.com/NataPrivate/DB_Lab2/0"));
+        try {
+            // the parser accepts years up to 2017, retention needs logs of the last days
+            retentionHandler.getCollection().insertMany(logs);
+            List<Document> expectedUrlsCount = toList(retentionHandler.findUrlsCount());
+            List<Document> expectedUrlsDuration = toList(retentionHandler.findUrlsDuration(3));
+            List<Document> expectedIpsDurationCount = toList(retentionHandler.findIdsDurationCount());
+            Date dateTime1 = new Date(now - TimeUnit.DAYS.toMillis(5));
+            Date dateTime2 = new Date(now);
+            List<Document> expectedUrls = retentionHandler.findUrlsCountByTime(dateTime1, dateTime2, 0)
+                    .into(new ArrayList<>());
+            List<Document> expectedIps = retentionHandler.findIpsCountByTime(dateTime1, dateTime2, 2)
+                    .into(new ArrayList<>());
+
+            retentionHandler.enableRetention(1, 30, 365, TimeUnit.DAYS);
+            assertNotNull(retentionHandler.getRetention().getDownsampledUntil());
+            // raw logs expire by the TTL monitor which runs every minute
+            retentionHandler.getCollection().deleteMany(lt("datetime", new Date(now - TimeUnit.DAYS.toMillis(1))));
+            assertThat(retentionHandler.getCollection().count()).isEqualTo(1);
+            assertEquals(expectedUrlsCount, toList(retentionHandler.findUrlsCount()));
+            assertEquals(expectedUrlsDuration, toList(retentionHandler.findUrlsDuration(3)));
+            assertEquals(expectedIpsDurationCount, toList(retentionHandler.findIdsDurationCount()));
+            assertEquals(expectedUrls, retentionHandler.findUrlsCountByTime(dateTime1, dateTime2, 0)
+                    .into(new ArrayList<>()));
+            assertEquals(expectedIps, retentionHandler.findIpsCountByTime(dateTime1, dateTime2, 2)
+                    .into(new ArrayList<>()));
+            assertThat(retentionHandler.getCollection().listIndexes().into(new ArrayList<>()))
+                    .extracting(index -> index.getString("name")).contains("datetime_ttl");
+        }
+        finally {
+            retentionHandler.disableRetention();
+            retentionHandler.getDatabase().drop();
+            retentionHandler.close();
+        }
+    }
+    @Test
+    public void retentionWindowBounds() throws Exception {
+        MongoLogHandler retentionHandler = new MongoLogHandler("localhost", 27017, "serverlogs_retention");
+        String url = "https://github.com/NataPrivate/DB_Lab2/bounds";
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long day = TimeUnit.DAYS.toMillis(1);
+        long now = System.currentTimeMillis();
+        long expiredHour = now - now % hour - 80 * hour;
+        long rawHour = now - now % hour - 5 * hour;
+        long expiredDay = now - now % day - 40 * day;
+        long[][] periods = {{expiredHour, hour}, {rawHour, hour}, {expiredDay, day}};
+        List<Document> logs = new ArrayList<>();
+        for (long[] period : periods)
+            for (long offset : new long[] {period[1] / 6, period[1] * 2 / 3})
+                logs.add(log("111.35.120.1", period[0] + offset, url));
+        try {
+            retentionHandler.getCollection().insertMany(logs);
+            Date end = new Date(now);
+            double allLogs = countOf(url, retentionHandler.findUrlsCountByTime(new Date(expiredDay - 1), end, 0));
+            retentionHandler.enableRetention(1, 30, 365, TimeUnit.DAYS);
+
+            // the last hour or day is counted whole while its raw logs are expired
+            assertEquals(2, countOf(url, retentionHandler.findUrlsCountByTime(new Date(expiredHour - 1),
+                    new Date(expiredHour + hour / 3), 0)), 0);
+            assertEquals(2, countOf(url, retentionHandler.findUrlsCountByTime(new Date(expiredDay - 1),
+                    new Date(expiredDay + day / 3), 0)), 0);
+            // and is read from raw logs while they exist
+            assertEquals(3, countOf(url, retentionHandler.findUrlsCountByTime(new Date(expiredHour - 1),
+                    new Date(rawHour + hour / 3), 0)), 0);
+            assertEquals(allLogs, countOf(url, retentionHandler.findUrlsCountByTime(new Date(expiredDay - 1), end, 0)), 0);
+            assertEquals(6, allLogs, 0);
+        }
+        finally {
+            retentionHandler.disableRetention();
+            retentionHandler.getDatabase().drop();
+            retentionHandler.close();
+        }
+    }
+    private static Document log(String ip, long datetime, String url) {
+        return new Document("ip", ip).append("datetime", new Date(datetime)).append("duration", 1.0).append("url", url);
+    }
+    private static double countOf(String id, MongoIterable<Document> counts) {
+        for (Document document : counts)
+            if (id.equals(document.getString("_id")))
+                return ((Number) document.get("value")).doubleValue();
+        return 0;
+    }
+    @Test
+    public void findTopUrlsCount() throws Exception {
+        List<Document> expectedDocs = getExpectedDocsForUrlsCount().subList(0, 2);
+        List<Document> actualDocs = new ArrayList<>();
+        for (Document document : handler.findUrlsCount(2))
+            actualDocs.add(document);
+        assertEquals(expectedDocs, actualDocs);
+    }
+    @Test
+    public void reportsFromRollups() throws Exception {
+        String url = "https://github.com/NataPrivate/DB_Lab2/rollups";
+        handler.enableRollups(true);
+        try {
+            handler.rebuildRollups();
+            assertEquals(getExpectedDocsForUrlsCount(), toList(handler.findUrlsCount()));
+            assertEquals(getExpectedDocsForUrlsDuration(), toList(handler.findUrlsDuration()));
+            assertEquals(getExpectedDocsForIdsDurationCount(), toList(handler.findIdsDurationCount()));
+
+            handler.insertLog("111.35.120.105, 2017-10-23T15:10:00, 3, " + url);
+            handler.insertLogs(Arrays.asList("111.35.120.105, 2017-10-23T15:20:00, 3, " + url,
+                    "111.35.120.105, 2017-10-23T16:20:00, 3, " + url));
+            assertThat(toList(handler.findUrlsCount(1)).get(0).getDouble("value")).isEqualTo(5.0);
+            assertThat(toList(handler.findUrlsCount())).contains(new Document("_id", url).append("value", 3.0));
+            assertThat(toList(handler.findUrlsCountByHour(handler.getDateTime("2017-10-23T15:30:00"),
+                    handler.getDateTime("2017-10-23T16:00:00"), 0))).containsExactly(
+                    new Document("_id", "www.tutorialspoint.com/mongodb/mongodb_java.htm").append("value", 3.0),
+                    new Document("_id", url).append("value", 2.0),
+                    new Document("_id", "http://www.stijit.com/web-tips/dry-kiss-solid-yagni").append("value", 1.0));
+        }
+        finally {
+            collection.deleteMany(eq("url", url));
+            handler.disableRollups();
+            testDatabase.getCollection("urls_rollup").drop();
+            testDatabase.getCollection("ips_rollup").drop();
+            testDatabase.getCollection("urls_rollup_hourly").drop();
+        }
+    }
+    @Test
+    public void bucketedLayout() throws Exception {
+        String dateTime1 = "2017-10-23T10:45:18";
+        String dateTime2 = "2017-10-31T00:00:00";
+        String url = "www.tutorialspoint.com/mongodb/mongodb_java.htm";
+        String ip = "123.23.13.2";
+        List<Document> ipsByUrl = toList(handler.findIpsByUrl(url));
+        List<Document> urlsOfIp = toList(handler.findUrlsOfIp(ip));
+        List<Document> urlsInTime = toList(handler.findUrlsInTime(dateTime1, dateTime2));
+
+        handler.setStorageLayout(StorageLayout.HOURLY_BUCKETS);
+        try {
+            handler.insertLogs(initialLogs);
+            assertThat(testDatabase.getCollection("logs_buckets").count()).isEqualTo(7);
+            assertEquals(ipsByUrl, toList(handler.findIpsByUrl(url)));
+            assertEquals(urlsOfIp, toList(handler.findUrlsOfIp(ip)));
+            assertEquals(urlsInTime, toList(handler.findUrlsInTime(dateTime1, dateTime2)));
+            assertEquals(getExpectedDocsForUrlsCount(), toList(handler.findUrlsCount()));
+            assertEquals(getExpectedDocsForUrlsDuration(), toList(handler.findUrlsDuration()));
+            assertEquals(getExpectedDocsForIdsDurationCount(), toList(handler.findIdsDurationCount()));
+            assertEquals(getExpectedDocsForUrlsCountByTime(), toList(handler.findUrlsCountByTime(dateTime1, dateTime2)));
+        }
+        finally {
+            handler.setStorageLayout(StorageLayout.DOCUMENTS);
+            testDatabase.getCollection("logs_buckets").drop();
+        }
+    }
+    @Test
+    public void compactLayout() throws Exception {
+        String dateTime1 = "2017-10-23T10:45:18";
+        String dateTime2 = "2017-10-31T00:00:00";
+        String url = "www.tutorialspoint.com/mongodb/mongodb_java.htm";
+        String ip = "123.23.13.2";
+        List<Document> ipsByUrl = toList(handler.findIpsByUrl(url));
+        List<Document> urlsOfIp = toList(handler.findUrlsOfIp(ip));
+        List<Document> urlsInTime = toList(handler.findUrlsInTime(dateTime1, dateTime2));
+        List<Document> urlsCount = toList(handler.findUrlsCount());
+        List<Document> ipsDurationCount = toList(handler.findIdsDurationCount());
+
+        handler.setStorageLayout(StorageLayout.COMPACT);
+        try {
+            assertEquals(collection.count(), handler.migrateLogs());
+            assertEquals(ipsByUrl, toList(handler.findIpsByUrl(url)));
+            assertEquals(urlsOfIp, toList(handler.findUrlsOfIp(ip)));
+            assertEquals(urlsInTime, toList(handler.findUrlsInTime(dateTime1, dateTime2)));
+            assertEquals(urlsCount, toList(handler.findUrlsCount()));
+
+            List<Document> compactIpsDurationCount = toList(handler.findIdsDurationCount());
+            assertEquals(ipsDurationCount.size(), compactIpsDurationCount.size());
+            for (int i = 0; i < ipsDurationCount.size(); i++) {
+                Document expected = (Document) ipsDurationCount.get(i).get("value");
+                Document actual = (Document) compactIpsDurationCount.get(i).get("value");
+                assertEquals(ipsDurationCount.get(i).get("_id"), compactIpsDurationCount.get(i).get("_id"));
+                assertEquals(expected.get("count"), actual.get("count"));
+                assertEquals(expected.getDouble("duration"), actual.getDouble("duration"), 0.001);
+            }
+        }
+        finally {
+            handler.setStorageLayout(StorageLayout.DOCUMENTS);
+            testDatabase.getCollection("logs_compact").drop();
+            testDatabase.getCollection("urls").drop();
+            testDatabase.getCollection("counters").drop();
+        }
+    }
+
+    private List<Document> toList(MongoIterable<Document> docs) {
+        return docs.into(new ArrayList<>());
+    }
     private List<Document> getExpectedDocsForUrlsCountByTime() {
         List<Document> docs = new ArrayList<>();
         Map<String, Object> urlVisits = new HashMap<>();